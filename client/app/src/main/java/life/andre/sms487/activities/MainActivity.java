@@ -19,12 +19,16 @@ import java.util.List;
 
 import life.andre.sms487.R;
 import life.andre.sms487.events.MessagesStateChanged;
+import life.andre.sms487.events.SenderStateChanged;
 import life.andre.sms487.logging.Logger;
 import life.andre.sms487.messages.MessageContainer;
 import life.andre.sms487.messages.MessageStorage;
+import life.andre.sms487.network.RetryController;
+import life.andre.sms487.network.ServerApi;
 import life.andre.sms487.settings.AppSettings;
 import life.andre.sms487.system.PermissionsChecker;
 import life.andre.sms487.utils.BgTask;
+import life.andre.sms487.utils.DateUtil;
 
 public class MainActivity extends Activity {
     private final LogUpdater logUpdater = new LogUpdater(this::showLogsFromLogger);
@@ -35,6 +39,8 @@ public class MainActivity extends Activity {
     private EditText serverPasswordInput;
     private EditText serverUrlInput;
     private CheckBox sendSmsCheckBox;
+    private EditText filterRulesInput;
+    private TextView senderStateField;
     private TextView messagesField;
     private TextView logsField;
 
@@ -53,6 +59,7 @@ public class MainActivity extends Activity {
         super.onStart();
         showSettings();
         showMessages();
+        showSenderState(ServerApi.getInstance().getSenderState());
         logUpdater.run();
         eventBus.register(this);
     }
@@ -70,11 +77,19 @@ public class MainActivity extends Activity {
         showMessages();
     }
 
+    /** @noinspection unused*/
+    @Subscribe(threadMode = ThreadMode.MAIN)
+    public void onSenderStateChanged(SenderStateChanged event) {
+        showSenderState(event.state);
+    }
+
     private void findViewComponents() {
         serverUrlInput = findViewById(R.id.serverUrlInput);
         serverUserInput = findViewById(R.id.serverUserInput);
         serverPasswordInput = findViewById(R.id.serverPasswordInput);
         sendSmsCheckBox = findViewById(R.id.sendSmsCheckBox);
+        filterRulesInput = findViewById(R.id.filterRulesInput);
+        senderStateField = findViewById(R.id.senderStateField);
         messagesField = findViewById(R.id.messagesField);
         logsField = findViewById(R.id.logsField);
     }
@@ -93,6 +108,10 @@ public class MainActivity extends Activity {
             return false;
         });
         sendSmsCheckBox.setOnCheckedChangeListener((v, c) -> saveNeedSendSms());
+        filterRulesInput.setOnEditorActionListener((v, actionId, event) -> {
+            saveFilterRules();
+            return false;
+        });
     }
 
     private void showSettings() {
@@ -106,7 +125,8 @@ public class MainActivity extends Activity {
             st.getServerUrl(),
             st.getServerUser(),
             st.getServerKey(),
-            st.getNeedSendSms()
+            st.getNeedSendSms(),
+            st.getFilterRules()
         );
     }
 
@@ -117,6 +137,7 @@ public class MainActivity extends Activity {
         showServerUser(st.serverUser);
         showServerPassword(st.serverKey);
         showNeedSendSms(st.needSendSms);
+        showFilterRules(st.filterRules);
 
         lockSettingsSave = false;
     }
@@ -145,6 +166,12 @@ public class MainActivity extends Activity {
         }
     }
 
+    private void showFilterRules(@NonNull String filterRules) {
+        if (filterRulesInput != null) {
+            filterRulesInput.setText(filterRules);
+        }
+    }
+
     void saveServerUrl() {
         if (serverUrlInput == null || lockSettingsSave) {
             return;
@@ -198,6 +225,26 @@ public class MainActivity extends Activity {
         });
     }
 
+    void saveFilterRules() {
+        if (filterRulesInput == null || lockSettingsSave) {
+            return;
+        }
+
+        BgTask.run(() -> {
+            Editable filterRulesText = filterRulesInput.getText();
+            if (filterRulesText != null) {
+                AppSettings.getInstance().saveFilterRules(filterRulesText.toString());
+            }
+            return null;
+        });
+    }
+
+    private void showSenderState(@NonNull RetryController.State state) {
+        if (senderStateField != null) {
+            senderStateField.setText(state.toString());
+        }
+    }
+
     private void showMessages() {
         if (messagesField == null) {
             return;
@@ -215,8 +262,8 @@ public class MainActivity extends Activity {
 
         for (MessageContainer message : messages) {
             msgVal.append(message.getAddressFrom())
-                    .append('\t').append(message.getDateTime())
-                    .append("\nSent: ").append(message.isSent() ? "yes" : "no")
+                    .append('\t').append(DateUtil.formatDate(message.getDateTime()))
+                    .append("\nSent: ").append(getSentStatus(message))
                     .append('\n')
                     .append(message.getBody()).append("\n\n");
         }
@@ -224,6 +271,14 @@ public class MainActivity extends Activity {
         messagesField.setText(msgVal.toString().trim());
     }
 
+    @NonNull
+    private String getSentStatus(@NonNull MessageContainer message) {
+        if (message.isQuarantined()) {
+            return "quarantined";
+        }
+        return message.isSent() ? "yes" : "no";
+    }
+
     private void showLogsFromLogger() {
         if (logsField == null) {
             return;
@@ -265,12 +320,21 @@ public class MainActivity extends Activity {
         @NonNull
         final String serverKey;
         final boolean needSendSms;
-
-        SettingsToShow(@NonNull String serverUrl, @NonNull String serverUser, @NonNull String serverKey, boolean needSendSms) {
+        @NonNull
+        final String filterRules;
+
+        SettingsToShow(
+            @NonNull String serverUrl,
+            @NonNull String serverUser,
+            @NonNull String serverKey,
+            boolean needSendSms,
+            @NonNull String filterRules
+        ) {
             this.serverUrl = serverUrl;
             this.serverUser = serverUser;
             this.serverKey = serverKey;
             this.needSendSms = needSendSms;
+            this.filterRules = filterRules;
         }
     }
 }
@@ -0,0 +1,14 @@
+package life.andre.sms487.events;
+
+import androidx.annotation.NonNull;
+
+import life.andre.sms487.network.RetryController;
+
+public class SenderStateChanged {
+    @NonNull
+    public final RetryController.State state;
+
+    public SenderStateChanged(@NonNull RetryController.State state) {
+        this.state = state;
+    }
+}
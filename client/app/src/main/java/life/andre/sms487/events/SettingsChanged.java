@@ -0,0 +1,14 @@
+package life.andre.sms487.events;
+
+import androidx.annotation.NonNull;
+
+import life.andre.sms487.settings.AppSettings;
+
+public class SettingsChanged {
+    @NonNull
+    public final AppSettings.Snapshot settings;
+
+    public SettingsChanged(@NonNull AppSettings.Snapshot settings) {
+        this.settings = settings;
+    }
+}
@@ -0,0 +1,375 @@
+package life.andre.sms487.messages;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+
+import life.andre.sms487.logging.Logger;
+import life.andre.sms487.utils.BgTask;
+
+/**
+ * Append-only journal of caught messages on a memory-mapped file.
+ * A record is copied into the page cache at capture time, so the message survives process death
+ * while it waits for Room. There is no fsync: power loss is not covered.
+ * Messages are outstanding until they are stored in Room or dropped on purpose, then they are resolved.
+ * When nothing is outstanding, the journal is reset. When it's filled up to COMPACT_THRESHOLD, outstanding records
+ * are copied to a new file that replaces the old one.
+ * Reset and compaction run in the background: append is called on the main thread and only copies memory,
+ * resolve only updates the outstanding map, they don't share a lock.
+ * Record: data length (4), CRC32 of data (4), data. Zero length marks the end.
+ */
+public class CaptureJournal {
+    public static final String TAG = "CJL";
+    public static final String FILE_NAME = "capture.journal";
+    public static final String TMP_FILE_SUFFIX = ".tmp";
+    public static final int SIZE = 1024 * 1024;
+    public static final int HEADER_SIZE = 8;
+    // Compaction starts early, so appends don't run out of room while it's in the background
+    public static final int COMPACT_THRESHOLD = SIZE * 3 / 4;
+    public static final byte RECORD_VERSION = 1;
+
+    private static CaptureJournal instance;
+
+    @NonNull
+    private final File file;
+    @NonNull
+    private final Executor executor;
+    // Guards the buffer and the write position
+    @NonNull
+    private final Object appendLock = new Object();
+    @Nullable
+    private MappedByteBuffer buffer;
+    @NonNull
+    private final List<MessageContainer> recovered;
+    // Encoded records of messages that are not resolved yet by uid, in journal order
+    @NonNull
+    private final Map<String, byte[]> outstanding = Collections.synchronizedMap(new LinkedHashMap<>());
+    @NonNull
+    private final AtomicBoolean isCompactionScheduled = new AtomicBoolean(false);
+    private int writePosition = 0;
+
+    public static void init(@NonNull Context ctx) {
+        instance = new CaptureJournal(new File(ctx.getFilesDir(), FILE_NAME), (task) -> BgTask.run(() -> {
+            task.run();
+            return null;
+        }));
+    }
+
+    @NonNull
+    public static CaptureJournal getInstance() {
+        return Objects.requireNonNull(instance, "Not initialized");
+    }
+
+    CaptureJournal(@NonNull File file, @NonNull Executor executor) {
+        this.file = file;
+        this.executor = executor;
+        buffer = map(file);
+        recovered = buffer != null ? scan(buffer) : new ArrayList<>();
+    }
+
+    @Nullable
+    private static MappedByteBuffer map(@NonNull File file) {
+        // The mapping stays valid after the channel is closed
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, SIZE);
+        } catch (IOException e) {
+            Logger.e(TAG, "Journal is not available: " + e);
+            return null;
+        }
+    }
+
+    /**
+     * @return false when the message is not journaled: the journal is full or not available
+     */
+    public boolean append(@NonNull MessageContainer msg) {
+        byte[] data = encode(msg);
+        boolean isAppended;
+        boolean needsCompaction;
+        synchronized (appendLock) {
+            if (buffer == null) {
+                return false;
+            }
+
+            isAppended = hasRoom(writePosition, data);
+            if (isAppended) {
+                writePosition = writeRecord(buffer, writePosition, data);
+                outstanding.put(msg.getUid(), data);
+                msg.setJournaled(true);
+            }
+            needsCompaction = !isAppended || writePosition > COMPACT_THRESHOLD;
+        }
+
+        if (needsCompaction && isCompactionScheduled.compareAndSet(false, true)) {
+            executor.execute(this::compact);
+        }
+        if (!isAppended) {
+            Logger.w(TAG, "Journal is full, message is kept in memory only");
+        }
+        return isAppended;
+    }
+
+    /**
+     * Messages that were journaled but didn't get into Room before the process died.
+     * They are returned once.
+     */
+    @NonNull
+    public List<MessageContainer> takeRecovered() {
+        synchronized (recovered) {
+            List<MessageContainer> result = new ArrayList<>(recovered);
+            recovered.clear();
+            return result;
+        }
+    }
+
+    /**
+     * Called when journaled messages are committed to Room or dropped on purpose.
+     */
+    public void resolve(@NonNull Collection<String> uids) {
+        boolean isRemoved = false;
+        boolean isEmpty;
+        synchronized (outstanding) {
+            for (String uid : uids) {
+                isRemoved |= outstanding.remove(uid) != null;
+            }
+            isEmpty = outstanding.isEmpty();
+        }
+        if (isRemoved && isEmpty) {
+            executor.execute(this::reset);
+        }
+    }
+
+    public void resolve(@NonNull MessageContainer msg) {
+        if (msg.isJournaled()) {
+            resolve(Collections.singletonList(msg.getUid()));
+        }
+    }
+
+    /**
+     * Count of messages that are journaled and not resolved yet
+     */
+    public int getOutstandingCount() {
+        return outstanding.size();
+    }
+
+    private void reset() {
+        synchronized (appendLock) {
+            // A message could be appended after the reset was scheduled
+            if (!outstanding.isEmpty() || buffer == null || writePosition == 0) {
+                return;
+            }
+            buffer.putInt(0, 0);
+            writePosition = 0;
+        }
+    }
+
+    private static boolean hasRoom(int position, @NonNull byte[] data) {
+        // There must be room for the end mark after the record
+        return position + HEADER_SIZE + data.length + 4 <= SIZE;
+    }
+
+    /**
+     * @return position after the record
+     */
+    private static int writeRecord(@NonNull ByteBuffer buf, int position, @NonNull byte[] data) {
+        int end = position + HEADER_SIZE + data.length;
+
+        CRC32 crc = new CRC32();
+        crc.update(data);
+
+        // The end mark goes first, the length makes the record visible last
+        buf.putInt(end, 0);
+        ByteBuffer dataBuf = buf.duplicate();
+        dataBuf.position(position + HEADER_SIZE);
+        dataBuf.put(data);
+        buf.putInt(position + 4, (int) crc.getValue());
+        buf.putInt(position, data.length);
+
+        return end;
+    }
+
+    /**
+     * Writes outstanding records to a new file and puts it in place of the journal.
+     * The journal is never rewritten in place, so a crash in the middle leaves one of the two whole.
+     * The new file is mapped before appends are held, under the lock there are only memory copies and a rename.
+     */
+    private void compact() {
+        isCompactionScheduled.set(false);
+        if (!canCompact(getOutstandingRecords())) {
+            return;
+        }
+
+        File tmpFile = new File(file.getPath() + TMP_FILE_SUFFIX);
+        MappedByteBuffer tmpBuffer = map(tmpFile);
+        if (tmpBuffer == null) {
+            return;
+        }
+
+        synchronized (appendLock) {
+            List<byte[]> records = getOutstandingRecords();
+            if (!canCompact(records)) {
+                return;
+            }
+
+            int position = 0;
+            tmpBuffer.putInt(0, 0);
+            for (byte[] data : records) {
+                position = writeRecord(tmpBuffer, position, data);
+            }
+
+            if (!tmpFile.renameTo(file)) {
+                Logger.e(TAG, "Can't replace journal with compacted one");
+                return;
+            }
+
+            buffer = tmpBuffer;
+            writePosition = position;
+        }
+        Logger.i(TAG, "Journal compacted");
+    }
+
+    @NonNull
+    private List<byte[]> getOutstandingRecords() {
+        synchronized (outstanding) {
+            return new ArrayList<>(outstanding.values());
+        }
+    }
+
+    /**
+     * Compaction makes sense only when the outstanding records leave room for new ones
+     */
+    private static boolean canCompact(@NonNull List<byte[]> records) {
+        int size = 0;
+        for (byte[] data : records) {
+            size += HEADER_SIZE + data.length;
+        }
+        if (size > COMPACT_THRESHOLD) {
+            Logger.w(TAG, "Journal can't be compacted, outstanding: " + records.size());
+            return false;
+        }
+        return true;
+    }
+
+    @NonNull
+    private List<MessageContainer> scan(@NonNull ByteBuffer buf) {
+        List<MessageContainer> messages = new ArrayList<>();
+
+        int pos = 0;
+        while (pos + HEADER_SIZE <= SIZE) {
+            int length = buf.getInt(pos);
+            if (length <= 0 || pos + HEADER_SIZE + length > SIZE) {
+                break;
+            }
+
+            byte[] data = new byte[length];
+            ByteBuffer dataBuf = buf.duplicate();
+            dataBuf.position(pos + HEADER_SIZE);
+            dataBuf.get(data);
+
+            CRC32 crc = new CRC32();
+            crc.update(data);
+            if ((int) crc.getValue() != buf.getInt(pos + 4)) {
+                Logger.w(TAG, "Torn record at " + pos + ", stop reading");
+                break;
+            }
+
+            MessageContainer msg = decode(data);
+            if (msg == null) {
+                break;
+            }
+            msg.setJournaled(true);
+            messages.add(msg);
+            outstanding.put(msg.getUid(), data);
+            pos += HEADER_SIZE + length;
+        }
+
+        writePosition = pos;
+        if (!messages.isEmpty()) {
+            Logger.w(TAG, "Recovered from journal: " + messages.size());
+        }
+        return messages;
+    }
+
+    @NonNull
+    private static byte[] encode(@NonNull MessageContainer msg) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(RECORD_VERSION);
+            writeString(out, msg.getUid());
+            writeString(out, msg.getMessageType());
+            writeString(out, msg.getAddressFrom());
+            out.writeLong(msg.getDateTime());
+            out.writeLong(msg.getSmsCenterDateTime());
+            writeString(out, msg.getBody());
+        } catch (IOException e) {
+            // Not possible for a byte array
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    @Nullable
+    private static MessageContainer decode(@NonNull byte[] data) {
+        ByteBuffer in = ByteBuffer.wrap(data);
+        try {
+            if (in.get() != RECORD_VERSION) {
+                return null;
+            }
+            String uid = readString(in);
+            String messageType = readString(in);
+            String addressFrom = readString(in);
+            long dateTime = in.getLong();
+            long smsCenterDateTime = in.getLong();
+            String body = readString(in);
+
+            return new MessageContainer(uid, messageType, addressFrom, dateTime, smsCenterDateTime, body, false, false, 0);
+        } catch (BufferUnderflowException e) {
+            return null;
+        }
+    }
+
+    private static void writeString(@NonNull DataOutputStream out, @Nullable String val) throws IOException {
+        if (val == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = val.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    @Nullable
+    private static String readString(@NonNull ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > in.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
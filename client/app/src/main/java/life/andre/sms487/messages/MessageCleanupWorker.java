@@ -19,18 +19,19 @@ public class MessageCleanupWorker extends Worker {
     public static final String TASK_ID = "MessageCleanupWorker";
 
     public static void schedulePeriodic(@NonNull Context ctx) {
+        // Sent messages are deleted right after acknowledgement, this one cleans up the rest
         PeriodicWorkRequest task = new PeriodicWorkRequest.Builder(
                 MessageCleanupWorker.class,
-                1, TimeUnit.DAYS
+                6, TimeUnit.HOURS
         ).setConstraints(
                 new Constraints.Builder()
-                        .setRequiresCharging(true)
-                        .setRequiresDeviceIdle(true)
+                        .setRequiresBatteryNotLow(true)
                         .build()
         ).build();
 
         WorkManager workManager = WorkManager.getInstance(ctx);
-        workManager.enqueueUniquePeriodicWork(TASK_ID, ExistingPeriodicWorkPolicy.KEEP, task);
+        // Replace the schedule of older versions
+        workManager.enqueueUniquePeriodicWork(TASK_ID, ExistingPeriodicWorkPolicy.UPDATE, task);
 
         Logger.i(TAG, "Schedule old messages cleanup");
     }
@@ -3,60 +3,98 @@ package life.andre.sms487.messages;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
+import java.util.UUID;
+
+import life.andre.sms487.utils.DateUtil;
+
 public class MessageContainer {
+    private final String uid;
     private final String messageType;
     private final String addressFrom;
-    private final String dateTime;
-    private final String smsCenterDateTime;
+    private final long dateTime;
+    private final long smsCenterDateTime;
     private final String body;
     private final boolean isSent;
+    private final boolean isQuarantined;
     private long dbId;
+    @Nullable
+    private byte[] payload;
+    private boolean isJournaled = false;
+    private long leaseToken = 0;
 
     @NonNull
     public static MessageContainer createFromMessageEntry(@NonNull MessageStorage.Message messageEntry) {
         return new MessageContainer(
+                messageEntry.uid,
                 messageEntry.messageType,
                 messageEntry.addressFrom,
-                messageEntry.dateTime,
-                messageEntry.smsCenterDateTime,
+                getMillis(messageEntry.dateTimeMillis, messageEntry.dateTime),
+                getMillis(messageEntry.smsCenterDateTimeMillis, messageEntry.smsCenterDateTime),
                 messageEntry.body,
-                messageEntry.isSent,
+                messageEntry.status == MessageStorage.STATUS_SENT,
+                messageEntry.status == MessageStorage.STATUS_QUARANTINED,
                 messageEntry.id
-        );
+        ).withPayload(messageEntry.payload);
     }
 
-    public MessageContainer(String messageType, String addressFrom, String dateTime, String smsCenterDateTime, String body, boolean isSent, long dbId) {
+    /**
+     * Rows from before schema v4 may be not backfilled yet, their dates are only in the legacy string columns.
+     */
+    private static long getMillis(long millis, @Nullable String legacyDateTime) {
+        if (millis != 0 || legacyDateTime == null) {
+            return millis;
+        }
+        return DateUtil.parseDate(legacyDateTime);
+    }
+
+    public MessageContainer(String uid, String messageType, String addressFrom, long dateTime, long smsCenterDateTime, String body, boolean isSent, boolean isQuarantined, long dbId) {
+        this.uid = uid;
         this.messageType = messageType;
         this.addressFrom = addressFrom;
         this.dateTime = dateTime;
         this.smsCenterDateTime = smsCenterDateTime;
         this.body = body;
         this.isSent = isSent;
+        this.isQuarantined = isQuarantined;
         this.dbId = dbId;
     }
 
-    public MessageContainer(String messageType, String addressFrom, String dateTime, String smsCenterDateTime, String body) {
+    public MessageContainer(String messageType, String addressFrom, long dateTime, long smsCenterDateTime, String body) {
+        this.uid = UUID.randomUUID().toString();
         this.messageType = messageType;
         this.addressFrom = addressFrom;
         this.dateTime = dateTime;
         this.smsCenterDateTime = smsCenterDateTime;
         this.body = body;
         this.isSent = false;
+        this.isQuarantined = false;
         this.dbId = 0;
     }
 
+    /**
+     * Stable unique key of the message. It's sent with every attempt, so the server can drop retried duplicates.
+     */
+    @Nullable
+    public String getUid() {
+        return uid;
+    }
+
     @Nullable
     public String getAddressFrom() {
         return addressFrom;
     }
 
-    @Nullable
-    public String getDateTime() {
+    /**
+     * Epoch millis when the message was caught, 0 when unknown
+     */
+    public long getDateTime() {
         return dateTime;
     }
 
-    @Nullable
-    public String getSmsCenterDateTime() {
+    /**
+     * Epoch millis from the SMS center or the notification post time, 0 when unknown
+     */
+    public long getSmsCenterDateTime() {
         return smsCenterDateTime;
     }
 
@@ -65,6 +103,47 @@ public class MessageContainer {
         return body;
     }
 
+    @NonNull
+    private MessageContainer withPayload(@Nullable byte[] payload) {
+        this.payload = payload;
+        return this;
+    }
+
+    /**
+     * Serialized request item, it's made once when the message is caught and stored with it
+     */
+    @Nullable
+    public byte[] getPayload() {
+        return payload;
+    }
+
+    public void setPayload(@Nullable byte[] payload) {
+        this.payload = payload;
+    }
+
+    /**
+     * The message is in {@link CaptureJournal} and must be reported there when it's stored
+     */
+    public boolean isJournaled() {
+        return isJournaled;
+    }
+
+    public void setJournaled(boolean journaled) {
+        isJournaled = journaled;
+    }
+
+    /**
+     * Lease the row was inserted or claimed with, 0 when it's not leased.
+     * The lease is renewed by it right before sending, see {@link MessageStorage#renewLeases}
+     */
+    public long getLeaseToken() {
+        return leaseToken;
+    }
+
+    public void setLeaseToken(long leaseToken) {
+        this.leaseToken = leaseToken;
+    }
+
     public void setDbId(long dbId) {
         this.dbId = dbId;
     }
@@ -77,6 +156,10 @@ public class MessageContainer {
         return isSent;
     }
 
+    public boolean isQuarantined() {
+        return isQuarantined;
+    }
+
     @NonNull
     public String getMessageType() {
         return messageType;
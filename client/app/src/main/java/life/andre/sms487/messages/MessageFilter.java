@@ -0,0 +1,159 @@
+package life.andre.sms487.messages;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import life.andre.sms487.logging.Logger;
+import life.andre.sms487.network.ServerApi;
+
+/**
+ * Decides which messages are captured at all, before they are queued, stored or sent.
+ * Rules are separated by new lines or ";", "#" starts a comment:
+ * <pre>
+ * allow-package com.example.bank
+ * deny-package org.telegram.messenger
+ * deny-type notification
+ * deny-title ^Downloading
+ * deny-text (?i)promo code
+ * </pre>
+ * When there is an allow-package rule, notifications only from the allowed packages pass.
+ * Patterns are Java regexes searched in the text, all patterns of a kind are compiled into one.
+ */
+public class MessageFilter {
+    public static final String TAG = "MFL";
+
+    public static final MessageFilter ACCEPT_ALL = new MessageFilter(
+        new HashSet<>(), new HashSet<>(), new HashSet<>(), null, null
+    );
+
+    @NonNull
+    private final Set<String> allowedPackages;
+    @NonNull
+    private final Set<String> deniedPackages;
+    @NonNull
+    private final Set<String> deniedTypes;
+    @Nullable
+    private final Pattern deniedTitle;
+    @Nullable
+    private final Pattern deniedText;
+
+    private MessageFilter(
+        @NonNull Set<String> allowedPackages,
+        @NonNull Set<String> deniedPackages,
+        @NonNull Set<String> deniedTypes,
+        @Nullable Pattern deniedTitle,
+        @Nullable Pattern deniedText
+    ) {
+        this.allowedPackages = allowedPackages;
+        this.deniedPackages = deniedPackages;
+        this.deniedTypes = deniedTypes;
+        this.deniedTitle = deniedTitle;
+        this.deniedText = deniedText;
+    }
+
+    /**
+     * Broken rules are skipped with a warning, so a typo doesn't stop capturing
+     */
+    @NonNull
+    public static MessageFilter compile(@NonNull String rules) {
+        Set<String> allowedPackages = new HashSet<>();
+        Set<String> deniedPackages = new HashSet<>();
+        Set<String> deniedTypes = new HashSet<>();
+        List<String> titlePatterns = new ArrayList<>();
+        List<String> textPatterns = new ArrayList<>();
+
+        for (String line : rules.split("[\n;]")) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+
+            String[] parts = line.split("\\s+", 2);
+            if (parts.length < 2) {
+                Logger.w(TAG, "Rule without value: " + line);
+                continue;
+            }
+
+            String value = parts[1].trim();
+            switch (parts[0]) {
+                case "allow-package":
+                    allowedPackages.add(value);
+                    break;
+                case "deny-package":
+                    deniedPackages.add(value);
+                    break;
+                case "deny-type":
+                    deniedTypes.add(value);
+                    break;
+                case "deny-title":
+                    addPattern(titlePatterns, value);
+                    break;
+                case "deny-text":
+                    addPattern(textPatterns, value);
+                    break;
+                default:
+                    Logger.w(TAG, "Unknown rule: " + line);
+            }
+        }
+
+        return new MessageFilter(
+            allowedPackages, deniedPackages, deniedTypes,
+            joinPatterns(titlePatterns), joinPatterns(textPatterns)
+        );
+    }
+
+    /**
+     * Cheap check by type and package, it's fine for the main thread
+     */
+    public boolean acceptsSource(@NonNull String messageType, @NonNull String source) {
+        if (deniedTypes.contains(messageType)) {
+            return false;
+        }
+        if (!ServerApi.MESSAGE_TYPE_NOTIFICATION.equals(messageType)) {
+            return true;
+        }
+        if (deniedPackages.contains(source)) {
+            return false;
+        }
+        return allowedPackages.isEmpty() || allowedPackages.contains(source);
+    }
+
+    public boolean acceptsContent(@Nullable CharSequence title, @Nullable CharSequence text) {
+        if (deniedTitle != null && title != null && deniedTitle.matcher(title).find()) {
+            return false;
+        }
+        return deniedText == null || text == null || !deniedText.matcher(text).find();
+    }
+
+    private static void addPattern(@NonNull List<String> patterns, @NonNull String pattern) {
+        try {
+            Pattern.compile(pattern);
+            patterns.add(pattern);
+        } catch (PatternSyntaxException e) {
+            Logger.w(TAG, "Bad pattern " + pattern + ": " + e.getDescription());
+        }
+    }
+
+    @Nullable
+    private static Pattern joinPatterns(@NonNull List<String> patterns) {
+        if (patterns.isEmpty()) {
+            return null;
+        }
+
+        StringBuilder joined = new StringBuilder();
+        for (String pattern : patterns) {
+            if (joined.length() > 0) {
+                joined.append('|');
+            }
+            joined.append("(?:").append(pattern).append(')');
+        }
+        return Pattern.compile(joined.toString());
+    }
+}
@@ -3,7 +3,9 @@ package life.andre.sms487.messages;
 import android.content.Context;
 
 import androidx.annotation.NonNull;
+import androidx.work.BackoffPolicy;
 import androidx.work.Constraints;
+import androidx.work.Data;
 import androidx.work.ExistingWorkPolicy;
 import androidx.work.NetworkType;
 import androidx.work.OneTimeWorkRequest;
@@ -11,38 +13,85 @@ import androidx.work.WorkManager;
 import androidx.work.Worker;
 import androidx.work.WorkerParameters;
 
+import java.util.concurrent.TimeUnit;
+
 import life.andre.sms487.logging.Logger;
 import life.andre.sms487.network.ServerApi;
 
 public class MessageResendWorker extends Worker {
     public static final String TAG = "MRW";
     public static final String TASK_ID = "MessageResendWorker";
+    public static final String PROGRESS_SENT = "sent";
+    public static final long BACKOFF_DELAY = 30000;
 
     public static void scheduleOneTime(@NonNull Context ctx) {
+        scheduleOneTime(ctx, 0);
+    }
+
+    public static void scheduleOneTime(@NonNull Context ctx, long delayMillis) {
+        schedule(ctx, delayMillis, ExistingWorkPolicy.KEEP);
+    }
+
+    /**
+     * A running worker is kept by KEEP policy and the new request would be dropped, so the next run is appended to it
+     */
+    private static void scheduleNext(@NonNull Context ctx, long delayMillis) {
+        schedule(ctx, delayMillis, ExistingWorkPolicy.APPEND_OR_REPLACE);
+    }
+
+    private static void schedule(@NonNull Context ctx, long delayMillis, @NonNull ExistingWorkPolicy policy) {
         OneTimeWorkRequest task = new OneTimeWorkRequest.Builder(
             MessageResendWorker.class
         ).setConstraints(
             new Constraints.Builder()
                 .setRequiredNetworkType(NetworkType.CONNECTED)
                 .build()
+        ).setInitialDelay(
+            delayMillis, TimeUnit.MILLISECONDS
+        ).setBackoffCriteria(
+            BackoffPolicy.EXPONENTIAL, BACKOFF_DELAY, TimeUnit.MILLISECONDS
         ).build();
 
         WorkManager workManager = WorkManager.getInstance(ctx);
-        workManager.enqueueUniqueWork(TASK_ID, ExistingWorkPolicy.KEEP, task);
+        workManager.enqueueUniqueWork(TASK_ID, policy, task);
 
-        Logger.i(TAG, "Schedule messages resend");
+        Logger.i(TAG, "Schedule messages resend in " + delayMillis + " ms");
     }
 
+    @NonNull
+    private final Context ctx;
+
     public MessageResendWorker(@NonNull Context ctx, @NonNull WorkerParameters workerParams) {
         super(ctx, workerParams);
+        this.ctx = ctx;
     }
 
     @NonNull
     @Override
     public Result doWork() {
         try {
-            ServerApi.getInstance().resendMessages();
+            ServerApi serverApi = ServerApi.getInstance();
+            int result = serverApi.drainMessages(
+                (sentCount) -> setProgressAsync(new Data.Builder().putInt(PROGRESS_SENT, sentCount).build())
+            );
+            switch (result) {
+                case ServerApi.DRAIN_FAILED:
+                    Logger.w(TAG, "Not all messages are sent, retry later");
+                    return Result.retry();
+                case ServerApi.DRAIN_NOT_CONFIGURED:
+                    // Retries can't help, the drain is scheduled again when the settings change
+                    Logger.w(TAG, "Server params are empty, wait for settings");
+                    return Result.success();
+                case ServerApi.DRAIN_BACKING_OFF:
+                    long delay = serverApi.getSenderState().retryDelay;
+                    Logger.w(TAG, "Sender is backing off, resend in " + delay + " ms");
+                    scheduleNext(ctx, delay);
+                    return Result.success();
+            }
             return Result.success();
+        } catch (InterruptedException e) {
+            Logger.w(TAG, "Resend is interrupted");
+            return Result.retry();
         } catch (Exception e) {
             Logger.e(TAG, e.toString());
             //noinspection CallToPrintStackTrace
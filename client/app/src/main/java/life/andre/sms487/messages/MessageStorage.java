@@ -1,6 +1,7 @@
 package life.andre.sms487.messages;
 
 import android.content.Context;
+import android.database.Cursor;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -8,26 +9,134 @@ import androidx.room.ColumnInfo;
 import androidx.room.Dao;
 import androidx.room.Database;
 import androidx.room.Entity;
+import androidx.room.Index;
 import androidx.room.Insert;
+import androidx.room.OnConflictStrategy;
 import androidx.room.PrimaryKey;
 import androidx.room.Query;
 import androidx.room.Room;
 import androidx.room.RoomDatabase;
+import androidx.room.migration.Migration;
+import androidx.sqlite.db.SupportSQLiteDatabase;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntUnaryOperator;
 
 import life.andre.sms487.logging.Logger;
+import life.andre.sms487.utils.BgTask;
+import life.andre.sms487.utils.DateUtil;
 
 public class MessageStorage {
     public static final String TAG = "MDB";
+    // SQLite before 3.32 allows only 999 bound variables in a statement
+    public static final int MAX_QUERY_VARIABLES = 900;
+    public static final int BACKFILL_CHUNK_SIZE = 500;
+    public static final int KEEP_DAYS = 2;
+    // Rows shown in UI, they are never cleaned up
+    public static final int TAIL_SIZE = 5;
+    public static final int DELETE_CHUNK_SIZE = 200;
+    public static final int MAX_ROWS = 5000;
+    public static final int VACUUM_PAGES = 256;
+    public static final int AUTO_VACUUM_INCREMENTAL = 2;
+    // Limit for the one full VACUUM, 8 MB of data with default 4 KB pages
+    public static final int MAX_PAGES_TO_CONVERT = 2048;
+
+    public static final int STATUS_PENDING = 0;
+    // Claimed by a request, the lease is reclaimed by resend when it expires
+    public static final int STATUS_IN_FLIGHT = 1;
+    public static final int STATUS_SENT = 2;
+    public static final int STATUS_QUARANTINED = 3;
+    public static final long LEASE_TIME = TimeUnit.MINUTES.toMillis(5);
+    public static final int STREAM_PAGE_SIZE = 200;
+
+    static final Migration MIGRATION_1_2 = new Migration(1, 2) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase db) {
+            db.execSQL("ALTER TABLE Message ADD COLUMN uid TEXT");
+            db.execSQL("UPDATE Message SET uid = lower(hex(randomblob(16))) WHERE uid IS NULL");
+            db.execSQL("CREATE UNIQUE INDEX IF NOT EXISTS index_Message_uid ON Message (uid)");
+        }
+    };
+
+    static final Migration MIGRATION_2_3 = new Migration(2, 3) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase db) {
+            db.execSQL("ALTER TABLE Message ADD COLUMN isQuarantined INTEGER NOT NULL DEFAULT 0");
+        }
+    };
+
+    /**
+     * Dates become epoch millis. The string columns are left as legacy: rewriting the table would block startup.
+     * Millis are backfilled from them in chunks by {@link #backfillDates()}.
+     */
+    static final Migration MIGRATION_3_4 = new Migration(3, 4) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase db) {
+            db.execSQL("ALTER TABLE Message ADD COLUMN dateTimeMillis INTEGER NOT NULL DEFAULT 0");
+            db.execSQL("ALTER TABLE Message ADD COLUMN smsCenterDateTimeMillis INTEGER NOT NULL DEFAULT 0");
+            db.execSQL("DROP INDEX IF EXISTS index_Message_dateTime");
+            db.execSQL("DROP INDEX IF EXISTS index_Message_isSent");
+            db.execSQL("CREATE INDEX IF NOT EXISTS index_Message_dateTimeMillis ON Message (dateTimeMillis)");
+            db.execSQL("CREATE INDEX IF NOT EXISTS index_Message_isSent_isQuarantined_id ON Message (isSent, isQuarantined, id)");
+        }
+    };
+
+    /**
+     * Flags become a status with in-flight leases. Flag columns are left as legacy.
+     * Only sent and quarantined rows need an update, and cleanup keeps their count small.
+     */
+    static final Migration MIGRATION_4_5 = new Migration(4, 5) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase db) {
+            db.execSQL("ALTER TABLE Message ADD COLUMN status INTEGER NOT NULL DEFAULT 0");
+            db.execSQL("ALTER TABLE Message ADD COLUMN leaseUntil INTEGER NOT NULL DEFAULT 0");
+            db.execSQL("UPDATE Message SET status = CASE WHEN isQuarantined THEN 3 ELSE 2 END WHERE isSent OR isQuarantined");
+            db.execSQL("DROP INDEX IF EXISTS index_Message_isSent_isQuarantined_id");
+            db.execSQL("CREATE INDEX IF NOT EXISTS index_Message_status_id ON Message (status, id)");
+        }
+    };
+
+    /**
+     * Rows get serialized request items. Old rows have none, they are encoded at sending.
+     */
+    static final Migration MIGRATION_5_6 = new Migration(5, 6) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase db) {
+            db.execSQL("ALTER TABLE Message ADD COLUMN payload BLOB");
+        }
+    };
+
+    /**
+     * Stream leases get their own token, so it never matches an expiry of another lease.
+     */
+    static final Migration MIGRATION_6_7 = new Migration(6, 7) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase db) {
+            db.execSQL("ALTER TABLE Message ADD COLUMN leaseToken INTEGER NOT NULL DEFAULT 0");
+        }
+    };
 
     private static MessageStorage instance;
+    private final MessageDatabase db;
     private final MessageDao dao;
+    // Seeded from the DB by the first lease, so tokens of the previous process are never reused
+    private long lastLeaseToken = -1;
 
     public static void init(@NonNull Context ctx) {
         instance = new MessageStorage(ctx);
+        BgTask.run(() -> {
+            instance.storeRecovered(ctx);
+            instance.backfillDates();
+            return null;
+        });
     }
 
     @NonNull
@@ -36,26 +145,69 @@ public class MessageStorage {
     }
 
     private MessageStorage(@NonNull Context ctx) {
-        dao = Room.databaseBuilder(ctx, MessageDatabase.class, "messages").build().messageDao();
+        db = Room.databaseBuilder(ctx, MessageDatabase.class, "messages")
+                .addMigrations(MIGRATION_1_2, MIGRATION_2_3, MIGRATION_3_4, MIGRATION_4_5, MIGRATION_5_6, MIGRATION_6_7)
+                .build();
+        dao = db.messageDao();
     }
 
-    public long addMessage(@NonNull MessageContainer message) {
-        return dao.insert(Message.createFromMessageContainer(message));
+    @NonNull
+    public List<Long> addMessages(@NonNull List<MessageContainer> messages) {
+        return addMessages(messages, false);
     }
 
+    /**
+     * New messages are inserted in one transaction, so a batch costs one commit instead of one per row.
+     * When they are about to be sent, they are inserted already leased with one token, so resend can't pick them up.
+     *
+     * @return IDs of inserted rows, messages that are stored already are not in it
+     */
     @NonNull
-    public List<Long> addMessages(@NonNull List<MessageContainer> messages) {
-        List<Long> ids = new ArrayList<>();
+    public List<Long> addMessages(@NonNull List<MessageContainer> messages, boolean inFlight) {
+        long leaseUntil = inFlight ? System.currentTimeMillis() + LEASE_TIME : 0;
+        long token = inFlight ? nextLeaseToken() : 0;
 
+        List<MessageContainer> newMessages = new ArrayList<>();
+        List<Message> entries = new ArrayList<>();
+        List<String> journaledUids = new ArrayList<>();
         for (MessageContainer msg : messages) {
-            long dbId = msg.getDbId();
-            if (dbId == 0) {
-                dbId = addMessage(msg);
-                msg.setDbId(dbId);
+            if (msg.getDbId() == 0) {
+                if (msg.isJournaled()) {
+                    journaledUids.add(msg.getUid());
+                }
+                Message entry = Message.createFromMessageContainer(msg);
+                if (inFlight) {
+                    entry.status = STATUS_IN_FLIGHT;
+                    entry.leaseUntil = leaseUntil;
+                    entry.leaseToken = token;
+                }
+                newMessages.add(msg);
+                entries.add(entry);
+            }
+        }
+
+        if (!entries.isEmpty()) {
+            List<Long> newIds = dao.insertAll(entries);
+            for (int i = 0; i < newMessages.size(); ++i) {
+                // Rows recovered from journal may be stored already, they are ignored by uid
+                long newId = newIds.get(i);
+                if (newId > 0) {
+                    newMessages.get(i).setDbId(newId);
+                    newMessages.get(i).setLeaseToken(token);
+                }
             }
-            ids.add(dbId);
+        }
+        if (!journaledUids.isEmpty()) {
+            // Rows ignored by uid are stored already, they are resolved too
+            CaptureJournal.getInstance().resolve(journaledUids);
         }
 
+        List<Long> ids = new ArrayList<>();
+        for (MessageContainer msg : messages) {
+            if (msg.getDbId() != 0) {
+                ids.add(msg.getDbId());
+            }
+        }
         return ids;
     }
 
@@ -68,66 +220,384 @@ public class MessageStorage {
         return messages;
     }
 
+    /**
+     * Atomically leases pending rows and rows with expired leases, so concurrent resends never get the same row.
+     * Rows are read by keyset pages from the newest: pass ID of the last row of the previous page.
+     */
     @NonNull
-    public List<MessageContainer> getNotSentMessages() {
-        List<Message> messageEntries = dao.getNotSent();
-        List<MessageContainer> messages = new ArrayList<>();
+    public List<MessageContainer> claimNotSentPage(long beforeId, int limit) {
+        long now = System.currentTimeMillis();
+        long token = nextLeaseToken();
+        List<Message> messageEntries = db.runInTransaction(() -> {
+            List<Message> entries = dao.getClaimablePage(now, beforeId, limit);
+            List<Long> ids = new ArrayList<>();
+            for (Message entry : entries) {
+                ids.add((long) entry.id);
+            }
+            for (List<Long> chunk : splitIds(ids)) {
+                dao.lease(chunk, now + LEASE_TIME, token);
+            }
+            return entries;
+        });
 
+        List<MessageContainer> messages = new ArrayList<>();
         for (Message messageEntry : messageEntries) {
-            messages.add(MessageContainer.createFromMessageEntry(messageEntry));
+            MessageContainer msg = MessageContainer.createFromMessageEntry(messageEntry);
+            msg.setLeaseToken(token);
+            messages.add(msg);
         }
-
         return messages;
     }
 
-    public void markSent(long insertId) {
-        dao.markSent(insertId);
+    /**
+     * A batch can wait for a request slot longer than its lease, so the lease is renewed when the request starts.
+     * Rows claimed by a resend after their lease expired have another token and must not be sent here again.
+     *
+     * @return messages whose leases are renewed
+     */
+    @NonNull
+    public List<MessageContainer> renewLeases(@NonNull List<MessageContainer> messages) {
+        long leaseUntil = System.currentTimeMillis() + LEASE_TIME;
+        Map<Long, List<Long>> idsByToken = new HashMap<>();
+        for (MessageContainer msg : messages) {
+            if (msg.getLeaseToken() != 0) {
+                idsByToken.computeIfAbsent(msg.getLeaseToken(), (token) -> new ArrayList<>()).add(msg.getDbId());
+            }
+        }
+
+        Set<Long> ownedIds = db.runInTransaction(() -> {
+            Set<Long> ids = new HashSet<>();
+            for (Map.Entry<Long, List<Long>> lease : idsByToken.entrySet()) {
+                for (List<Long> chunk : splitIds(lease.getValue())) {
+                    dao.renewLease(lease.getKey(), chunk, leaseUntil);
+                    ids.addAll(dao.getLeasedIds(lease.getKey(), chunk));
+                }
+            }
+            return ids;
+        });
+
+        List<MessageContainer> owned = new ArrayList<>();
+        for (MessageContainer msg : messages) {
+            if (ownedIds.contains(msg.getDbId())) {
+                owned.add(msg);
+            }
+        }
+        return owned;
+    }
+
+    public int countNotSent() {
+        return dao.countClaimable(System.currentTimeMillis());
+    }
+
+    /**
+     * Leases every claimable row with one unique token:
+     * rows of this lease are read, acknowledged and released by it, without holding their IDs in memory.
+     *
+     * @return lease token or 0 when there is nothing to send
+     */
+    public long leaseAllNotSent() {
+        long now = System.currentTimeMillis();
+        long token = nextLeaseToken();
+        int count = dao.leaseAll(now, now + LEASE_TIME, token);
+        return count > 0 ? token : 0;
+    }
+
+    /**
+     * Reads rows of the lease by keyset pages, so only one page is in memory at a time.
+     *
+     * @return count of visited messages
+     */
+    public int forEachLeased(long token, @NonNull MessageVisitor visitor) throws IOException {
+        int count = 0;
+        long afterId = 0;
+        List<Message> page;
+        do {
+            page = dao.getLeasedPage(token, afterId, STREAM_PAGE_SIZE);
+            for (Message entry : page) {
+                visitor.visit(MessageContainer.createFromMessageEntry(entry));
+                afterId = entry.id;
+                count++;
+            }
+        } while (page.size() == STREAM_PAGE_SIZE);
+        return count;
+    }
+
+    /**
+     * Acknowledges the whole lease with what the server has not taken: those rows are given back to resend
+     * or quarantined, the rest is marked sent and removed in the same transaction, like markSent.
+     * The lease is kept by token, so no IDs of the acknowledged rows are held in memory.
+     *
+     * @return count of rows marked sent
+     */
+    public int markLeaseSent(long token, @NonNull List<String> retryUids, @NonNull List<String> rejectedUids) {
+        int sent = db.runInTransaction(() -> {
+            for (List<String> chunk : splitIds(retryUids)) {
+                dao.releaseLeaseByUids(token, chunk);
+            }
+            for (List<String> chunk : splitIds(rejectedUids)) {
+                dao.quarantineLeaseByUids(token, chunk);
+            }
+            int count = dao.markLeaseSent(token);
+            deleteSent();
+            return count;
+        });
+
+        if (!rejectedUids.isEmpty()) {
+            Logger.w(TAG, "Messages quarantined: " + rejectedUids.size());
+        }
+        return sent;
+    }
+
+    /**
+     * Gives back rows of the lease that are still in flight.
+     */
+    public int releaseLease(long token) {
+        return dao.releaseLease(token);
+    }
+
+    private synchronized long nextLeaseToken() {
+        if (lastLeaseToken < 0) {
+            lastLeaseToken = dao.getMaxLeaseToken();
+        }
+        return ++lastLeaseToken;
+    }
+
+    /**
+     * Gives leased rows back to resend after a failed request.
+     */
+    public void releaseMessages(@NonNull List<Long> insertIds) {
+        if (insertIds.isEmpty()) {
+            return;
+        }
+        db.runInTransaction(() -> {
+            for (List<Long> chunk : splitIds(insertIds)) {
+                dao.release(chunk);
+            }
+        });
     }
 
+    /**
+     * One transaction for the whole list, the IDs are updated in chunks that fit SQLite variables limit.
+     * Acknowledged rows are removed in the same transaction, so there is one commit per acknowledgement.
+     */
     public void markSent(@NonNull List<Long> insertIds) {
-        for (long insertId : insertIds) {
-            markSent(insertId);
+        if (insertIds.isEmpty()) {
+            return;
+        }
+        db.runInTransaction(() -> {
+            for (List<Long> chunk : splitIds(insertIds)) {
+                dao.markSentByIds(chunk);
+            }
+            deleteSent();
+        });
+    }
+
+    /**
+     * Quarantined messages were rejected by the server and are never resent.
+     */
+    public void markQuarantined(@NonNull List<Long> insertIds) {
+        if (insertIds.isEmpty()) {
+            return;
+        }
+        db.runInTransaction(() -> {
+            for (List<Long> chunk : splitIds(insertIds)) {
+                dao.markQuarantinedByIds(chunk);
+            }
+        });
+        Logger.w(TAG, "Messages quarantined: " + insertIds.size());
+    }
+
+    @NonNull
+    private static <T> List<List<T>> splitIds(@NonNull List<T> ids) {
+        List<List<T>> chunks = new ArrayList<>();
+        for (int i = 0; i < ids.size(); i += MAX_QUERY_VARIABLES) {
+            chunks.add(ids.subList(i, Math.min(ids.size(), i + MAX_QUERY_VARIABLES)));
         }
+        return chunks;
+    }
+
+    /**
+     * Removes acknowledged rows except UI tail. It's cheap, so it's done right after acknowledgement.
+     */
+    private int deleteSent() {
+        long tailStartId = dao.getTailStartId(TAIL_SIZE);
+        return deleteInChunks((limit) -> dao.deleteSent(tailStartId, limit));
     }
 
+    /**
+     * Removes sent and outdated rows, enforces rows budget and gives free pages back to the file system.
+     * Every chunk is deleted in its own short transaction, so senders are never blocked for long.
+     */
     public void deleteOld() {
-        int oldCount = dao.deleteOld();
-        Logger.i(TAG, "Old messages deleted: " + oldCount);
+        long threshold = DateUtil.startOfDayUtc(System.currentTimeMillis()) - TimeUnit.DAYS.toMillis(KEEP_DAYS);
+        long tailStartId = dao.getTailStartId(TAIL_SIZE);
+
+        int sentCount = deleteInChunks((limit) -> dao.deleteSent(tailStartId, limit));
+        int oldCount = deleteInChunks((limit) -> dao.deleteOlderThan(threshold, tailStartId, limit));
+        Logger.i(TAG, "Old messages deleted: " + (sentCount + oldCount));
+
+        int extra = dao.count() - MAX_ROWS;
+        if (extra > 0) {
+            // Pending and in-flight rows are never deleted by the budget, they are not delivered yet
+            Logger.w(TAG, "Rows budget exceeded, delete oldest delivered messages: " + extra);
+            int deleted;
+            do {
+                deleted = dao.deleteOldest(Math.min(extra, DELETE_CHUNK_SIZE));
+                extra -= deleted;
+            } while (extra > 0 && deleted > 0);
+        }
+
+        vacuum();
+    }
+
+    private static int deleteInChunks(@NonNull IntUnaryOperator deleteChunk) {
+        int total = 0;
+        int deleted;
+        do {
+            deleted = deleteChunk.applyAsInt(DELETE_CHUNK_SIZE);
+            total += deleted;
+        } while (deleted == DELETE_CHUNK_SIZE);
+        return total;
+    }
+
+    /**
+     * Incremental auto vacuum can be turned on only by a full VACUUM, it's done once
+     * and only when the file is small, so the rewrite is short. After that free pages are released in small steps.
+     */
+    private void vacuum() {
+        SupportSQLiteDatabase sdb = db.getOpenHelper().getWritableDatabase();
+
+        if (queryLong(sdb, "PRAGMA auto_vacuum") != AUTO_VACUUM_INCREMENTAL) {
+            // VACUUM copies only used pages, free ones are dropped
+            long usedPages = queryLong(sdb, "PRAGMA page_count") - queryLong(sdb, "PRAGMA freelist_count");
+            if (usedPages > MAX_PAGES_TO_CONVERT) {
+                Logger.i(TAG, "Database is too big to enable incremental vacuum: " + usedPages + " pages");
+                return;
+            }
+            Logger.i(TAG, "Enable incremental vacuum");
+            sdb.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+            sdb.execSQL("VACUUM");
+            return;
+        }
+
+        try (Cursor cursor = sdb.query("PRAGMA incremental_vacuum(" + VACUUM_PAGES + ")")) {
+            //noinspection StatementWithEmptyBody
+            while (cursor.moveToNext()) {
+            }
+        }
+    }
+
+    private static long queryLong(@NonNull SupportSQLiteDatabase sdb, @NonNull String query) {
+        try (Cursor cursor = sdb.query(query)) {
+            return cursor.moveToNext() ? cursor.getLong(0) : 0;
+        }
+    }
+
+    /**
+     * Messages from the capture journal that didn't get here before the process died
+     */
+    private void storeRecovered(@NonNull Context ctx) {
+        List<MessageContainer> recovered = CaptureJournal.getInstance().takeRecovered();
+        if (recovered.isEmpty()) {
+            return;
+        }
+
+        addMessages(recovered);
+        Logger.i(TAG, "Messages recovered: " + recovered.size());
+        MessageResendWorker.scheduleOneTime(ctx);
+    }
+
+    /**
+     * Fills millis columns of rows from schema v3, a short transaction per chunk of IDs.
+     */
+    public void backfillDates() {
+        Long maxId = dao.getMaxLegacyId();
+        if (maxId == null) {
+            return;
+        }
+
+        int updated = 0;
+        for (long fromId = 0; fromId < maxId; fromId += BACKFILL_CHUNK_SIZE) {
+            updated += dao.backfillDates(fromId, fromId + BACKFILL_CHUNK_SIZE);
+        }
+        Logger.i(TAG, "Message dates backfilled: " + updated);
+    }
+
+    public interface MessageVisitor {
+        void visit(@NonNull MessageContainer msg) throws IOException;
+    }
+
+    public interface MessageSource {
+        int forEach(@NonNull MessageVisitor visitor) throws IOException;
     }
 
-    @Entity
+    @Entity(indices = {
+            @Index(value = {"uid"}, unique = true),
+            @Index(value = {"status", "id"})
+    })
     public static class Message {
         @PrimaryKey(autoGenerate = true)
         public int id;
 
+        @Nullable
+        public String uid;
+
         @Nullable
         public String messageType;
 
         @Nullable
         public String addressFrom;
 
+        // Legacy, only in rows from schema v3
         @Nullable
-        @ColumnInfo(index = true)
         public String dateTime;
 
+        // Legacy, only in rows from schema v3
         @Nullable
         public String smsCenterDateTime;
 
+        @ColumnInfo(index = true, defaultValue = "0")
+        public long dateTimeMillis;
+
+        @ColumnInfo(defaultValue = "0")
+        public long smsCenterDateTimeMillis;
+
         @Nullable
         public String body;
 
-        @ColumnInfo(index = true, defaultValue = "0")
+        // Legacy, replaced by status in schema v5
+        @ColumnInfo(defaultValue = "0")
         public boolean isSent;
 
+        // Legacy, replaced by status in schema v5
+        @ColumnInfo(defaultValue = "0")
+        public boolean isQuarantined;
+
+        @ColumnInfo(defaultValue = "0")
+        public int status;
+
+        @ColumnInfo(defaultValue = "0")
+        public long leaseUntil;
+
+        // Token of the stream lease, 0 for rows leased by ID
+        @ColumnInfo(defaultValue = "0")
+        public long leaseToken;
+
+        @Nullable
+        @ColumnInfo(typeAffinity = ColumnInfo.BLOB)
+        public byte[] payload;
+
         @NonNull
         public static Message createFromMessageContainer(@NonNull MessageContainer messageContainer) {
             Message message = new Message();
 
+            message.uid = messageContainer.getUid();
             message.messageType = messageContainer.getMessageType();
             message.addressFrom = messageContainer.getAddressFrom();
-            message.dateTime = messageContainer.getDateTime();
-            message.smsCenterDateTime = messageContainer.getSmsCenterDateTime();
+            message.dateTimeMillis = messageContainer.getDateTime();
+            message.smsCenterDateTimeMillis = messageContainer.getSmsCenterDateTime();
             message.body = messageContainer.getBody();
+            message.payload = messageContainer.getPayload();
 
             return message;
         }
@@ -141,20 +611,84 @@ public class MessageStorage {
         List<Message> getTail();
 
         @NonNull
-        @Query("SELECT * FROM message WHERE isSent == 0 ORDER BY id DESC")
-        List<Message> getNotSent();
+        @Query("SELECT * FROM message WHERE (status == 0 OR (status == 1 AND leaseUntil < :now)) AND id < :beforeId ORDER BY id DESC LIMIT :limit")
+        List<Message> getClaimablePage(long now, long beforeId, int limit);
+
+        @Insert(onConflict = OnConflictStrategy.IGNORE)
+        List<Long> insertAll(List<Message> messages);
+
+        @Query("UPDATE message SET status=1, leaseUntil=:leaseUntil, leaseToken=:token WHERE id IN (:insertIds)")
+        int lease(List<Long> insertIds, long leaseUntil, long token);
+
+        @Query("UPDATE message SET leaseUntil=:leaseUntil WHERE status == 1 AND leaseToken == :token AND id IN (:insertIds)")
+        int renewLease(long token, List<Long> insertIds, long leaseUntil);
+
+        @NonNull
+        @Query("SELECT id FROM message WHERE status == 1 AND leaseToken == :token AND id IN (:insertIds)")
+        List<Long> getLeasedIds(long token, List<Long> insertIds);
 
-        @Insert
-        long insert(Message message);
+        @Query("UPDATE message SET status=0, leaseUntil=0, leaseToken=0 WHERE id IN (:insertIds) AND status == 1")
+        int release(List<Long> insertIds);
 
-        @Query("UPDATE message SET isSent=1 WHERE id=:insertId")
-        void markSent(long insertId);
+        @Query("SELECT count(*) FROM message WHERE status == 0 OR (status == 1 AND leaseUntil < :now)")
+        int countClaimable(long now);
 
-        @Query("DELETE FROM message WHERE id IN (SELECT id FROM message WHERE (isSent == 1 OR dateTime < strftime('%Y-%m-%d 00:00', 'now', 'utc', '-2 days')) ORDER BY id DESC LIMIT 5,100000)")
-        int deleteOld();
+        @Query("UPDATE message SET status=1, leaseUntil=:leaseUntil, leaseToken=:token WHERE status == 0 OR (status == 1 AND leaseUntil < :now)")
+        int leaseAll(long now, long leaseUntil, long token);
+
+        @Query("SELECT ifnull(max(leaseToken), 0) FROM message")
+        long getMaxLeaseToken();
+
+        @NonNull
+        @Query("SELECT * FROM message WHERE status == 1 AND leaseToken == :token AND id > :afterId ORDER BY id LIMIT :limit")
+        List<Message> getLeasedPage(long token, long afterId, int limit);
+
+        @Query("UPDATE message SET status=0, leaseUntil=0, leaseToken=0 WHERE status == 1 AND leaseToken == :token")
+        int releaseLease(long token);
+
+        @Query("UPDATE message SET status=0, leaseUntil=0, leaseToken=0 WHERE status == 1 AND leaseToken == :token AND uid IN (:uids)")
+        int releaseLeaseByUids(long token, List<String> uids);
+
+        @Query("UPDATE message SET status=3, leaseUntil=0, leaseToken=0 WHERE status == 1 AND leaseToken == :token AND uid IN (:uids)")
+        int quarantineLeaseByUids(long token, List<String> uids);
+
+        @Query("UPDATE message SET status=2, leaseUntil=0, leaseToken=0 WHERE status == 1 AND leaseToken == :token")
+        int markLeaseSent(long token);
+
+        @Query("UPDATE message SET status=2, leaseUntil=0, leaseToken=0 WHERE id IN (:insertIds)")
+        int markSentByIds(List<Long> insertIds);
+
+        @Query("UPDATE message SET status=3, leaseUntil=0, leaseToken=0 WHERE id IN (:insertIds)")
+        int markQuarantinedByIds(List<Long> insertIds);
+
+        @Query("SELECT ifnull(min(id), 0) FROM (SELECT id FROM message ORDER BY id DESC LIMIT :tailSize)")
+        long getTailStartId(int tailSize);
+
+        @Query("SELECT count(*) FROM message")
+        int count();
+
+        @Query("DELETE FROM message WHERE id IN (SELECT id FROM message WHERE status == 2 AND id < :tailStartId LIMIT :limit)")
+        int deleteSent(long tailStartId, int limit);
+
+        @Query("DELETE FROM message WHERE id IN (SELECT id FROM message WHERE dateTimeMillis > 0 AND dateTimeMillis < :threshold AND id < :tailStartId LIMIT :limit)")
+        int deleteOlderThan(long threshold, long tailStartId, int limit);
+
+        @Query("DELETE FROM message WHERE id IN (SELECT id FROM message WHERE status >= 2 ORDER BY id LIMIT :limit)")
+        int deleteOldest(int limit);
+
+        @Nullable
+        @Query("SELECT max(id) FROM message WHERE dateTimeMillis == 0 AND dateTime IS NOT NULL")
+        Long getMaxLegacyId();
+
+        // Legacy strings are in UTC: "yyyy-MM-dd HH:mm +0000"
+        @Query("UPDATE message SET " +
+                "dateTimeMillis = ifnull(strftime('%s', substr(dateTime, 1, 16)) * 1000, 0), " +
+                "smsCenterDateTimeMillis = ifnull(strftime('%s', substr(smsCenterDateTime, 1, 16)) * 1000, 0) " +
+                "WHERE id > :fromId AND id <= :toId AND dateTimeMillis == 0 AND dateTime IS NOT NULL")
+        int backfillDates(long fromId, long toId);
     }
 
-    @Database(entities = {Message.class}, version = 1, exportSchema = false)
+    @Database(entities = {Message.class}, version = 7, exportSchema = false)
     public static abstract class MessageDatabase extends RoomDatabase {
         public abstract MessageDao messageDao();
     }
@@ -11,30 +11,32 @@ import java.util.List;
 import java.util.Map;
 
 import life.andre.sms487.network.ServerApi;
-import life.andre.sms487.utils.DateUtil;
 
 public class PduConverter {
+    private static final long MINUTE = 60 * 1000;
+
     @NonNull
     public static List<MessageContainer> convert(@NonNull Object[] pdus, String format) {
-        Map<Pair<String, String>, List<SmsMessage>> messageTable = getMessageTable(pdus, format);
+        Map<Pair<String, Long>, List<SmsMessage>> messageTable = getMessageTable(pdus, format);
 
         return getMessageContainers(messageTable);
     }
 
     @NonNull
-    private static Map<Pair<String, String>, List<SmsMessage>> getMessageTable(
+    private static Map<Pair<String, Long>, List<SmsMessage>> getMessageTable(
             @NonNull Object[] pdus, String format
     ) {
-        Map<Pair<String, String>, List<SmsMessage>> messageTable = new HashMap<>();
+        Map<Pair<String, Long>, List<SmsMessage>> messageTable = new HashMap<>();
 
         for (Object pdu : pdus) {
             byte[] pduBytes = (byte[]) pdu;
 
             SmsMessage message = SmsMessage.createFromPdu(pduBytes, format);
-            String smsCenterDateTime = DateUtil.formatDate(message.getTimestampMillis());
+            // Parts of one message are grouped by minute
+            long smsCenterMinute = message.getTimestampMillis() / MINUTE;
 
             String tel = message.getOriginatingAddress();
-            Pair<String, String> key = new Pair<>(tel, smsCenterDateTime);
+            Pair<String, Long> key = new Pair<>(tel, smsCenterMinute);
 
             List<SmsMessage> telMessages = messageTable.get(key);
             if (telMessages == null) {
@@ -50,19 +52,19 @@ public class PduConverter {
 
     @NonNull
     private static List<MessageContainer> getMessageContainers(
-            @NonNull Map<Pair<String, String>, List<SmsMessage>> messageTable
+            @NonNull Map<Pair<String, Long>, List<SmsMessage>> messageTable
     ) {
         List<MessageContainer> messageContainers = new ArrayList<>();
 
-        for (Map.Entry<Pair<String, String>, List<SmsMessage>> entry : messageTable.entrySet()) {
-            Pair<String, String> key = entry.getKey();
+        for (Map.Entry<Pair<String, Long>, List<SmsMessage>> entry : messageTable.entrySet()) {
+            Pair<String, Long> key = entry.getKey();
             List<SmsMessage> messages = entry.getValue();
 
             String tel = key.first;
-            String smsCenterDateTime = key.second;
+            long smsCenterDateTime = messages.get(0).getTimestampMillis();
             StringBuilder fullTextBuilder = new StringBuilder();
 
-            String dateTime = DateUtil.nowFormatted();
+            long dateTime = System.currentTimeMillis();
 
             for (SmsMessage message : messages) {
                 String messageBody = message.getMessageBody();
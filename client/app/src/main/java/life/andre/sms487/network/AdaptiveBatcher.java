@@ -0,0 +1,114 @@
+package life.andre.sms487.network;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import life.andre.sms487.logging.Logger;
+import life.andre.sms487.messages.MessageContainer;
+
+/**
+ * Splits messages to batches limited by payload bytes.
+ * The byte budget grows while requests are fast and shrinks on slow requests and errors,
+ * so a good link gets fewer large requests and a poor one gets small requests that are more likely to get through.
+ */
+public class AdaptiveBatcher {
+    public static final String TAG = "ABT";
+
+    public static final int MIN_BYTE_BUDGET = 4 * 1024;
+    public static final int MAX_BYTE_BUDGET = 256 * 1024;
+    public static final int INITIAL_BYTE_BUDGET = 32 * 1024;
+    public static final int MAX_MESSAGES = 500;
+
+    public static final long FAST_RTT = 1000;
+    public static final long SLOW_RTT = 4000;
+
+    // JSON keys, quotes, device id and date strings of one item
+    private static final int ITEM_OVERHEAD = 160;
+    private static final double RTT_SMOOTHING = 0.3;
+
+    private int byteBudget = INITIAL_BYTE_BUDGET;
+    private double rttAvg = -1;
+
+    @NonNull
+    public synchronized List<List<MessageContainer>> split(@NonNull List<MessageContainer> messages) {
+        List<List<MessageContainer>> batches = new ArrayList<>();
+
+        List<MessageContainer> batch = new ArrayList<>();
+        int batchSize = 0;
+        for (MessageContainer msg : messages) {
+            int msgSize = estimateSize(msg);
+            boolean isFull = batchSize + msgSize > byteBudget || batch.size() >= MAX_MESSAGES;
+            if (isFull && !batch.isEmpty()) {
+                batches.add(batch);
+                batch = new ArrayList<>();
+                batchSize = 0;
+            }
+            batch.add(msg);
+            batchSize += msgSize;
+        }
+
+        if (!batch.isEmpty()) {
+            batches.add(batch);
+        }
+
+        return batches;
+    }
+
+    public synchronized void onSuccess(long rttMillis) {
+        rttAvg = rttAvg < 0 ? rttMillis : rttAvg + RTT_SMOOTHING * (rttMillis - rttAvg);
+
+        if (rttAvg < FAST_RTT) {
+            setByteBudget(byteBudget + byteBudget / 4);
+        } else if (rttAvg > SLOW_RTT) {
+            setByteBudget(byteBudget * 3 / 4);
+        }
+    }
+
+    public synchronized void onFailure() {
+        setByteBudget(byteBudget / 2);
+    }
+
+    public synchronized int getByteBudget() {
+        return byteBudget;
+    }
+
+    private void setByteBudget(int newBudget) {
+        newBudget = Math.max(MIN_BYTE_BUDGET, Math.min(MAX_BYTE_BUDGET, newBudget));
+        if (newBudget == byteBudget) {
+            return;
+        }
+
+        Logger.i(TAG, "Batch budget: " + byteBudget + " -> " + newBudget + " bytes, RTT avg: " + Math.round(rttAvg) + " ms");
+        byteBudget = newBudget;
+    }
+
+    static int estimateSize(@NonNull MessageContainer msg) {
+        byte[] payload = msg.getPayload();
+        if (payload != null) {
+            return payload.length + 1;
+        }
+        return ITEM_OVERHEAD + utf8Length(msg.getAddressFrom()) + utf8Length(msg.getBody());
+    }
+
+    private static int utf8Length(@Nullable String s) {
+        if (s == null) {
+            return 0;
+        }
+
+        int len = 0;
+        for (int i = 0; i < s.length(); ++i) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                len += c < 0x20 || c == '"' || c == '\\' ? 2 : 1;
+            } else if (c < 0x800) {
+                len += 2;
+            } else {
+                len += Character.isSurrogate(c) ? 2 : 3;
+            }
+        }
+        return len;
+    }
+}
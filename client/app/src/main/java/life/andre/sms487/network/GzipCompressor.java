@@ -0,0 +1,79 @@
+package life.andre.sms487.network;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import life.andre.sms487.logging.Logger;
+
+/**
+ * Compresses request bodies when the server has announced gzip support
+ * with an {@code Accept-Encoding} response header. Old servers never send it, so they get plain JSON.
+ */
+public class GzipCompressor {
+    public static final String TAG = "GZC";
+    public static final String ENCODING = "gzip";
+    public static final int MIN_SIZE_TO_COMPRESS = 1024;
+
+    private volatile boolean serverAcceptsGzip = false;
+
+    public boolean isServerAcceptsGzip() {
+        return serverAcceptsGzip;
+    }
+
+    public void handleResponseHeaders(@Nullable Map<String, String> headers) {
+        if (headers == null) {
+            return;
+        }
+
+        boolean accepts = false;
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            String name = header.getKey();
+            String val = header.getValue();
+            if (name != null && val != null && name.equalsIgnoreCase("Accept-Encoding")) {
+                accepts = val.toLowerCase().contains(ENCODING);
+                break;
+            }
+        }
+
+        if (accepts != serverAcceptsGzip) {
+            Logger.i(TAG, "Server gzip support: " + accepts);
+            serverAcceptsGzip = accepts;
+        }
+    }
+
+    public void disable() {
+        if (serverAcceptsGzip) {
+            Logger.w(TAG, "Server rejected gzip, disable compression");
+        }
+        serverAcceptsGzip = false;
+    }
+
+    /**
+     * @return compressed data or null when the body should be sent as is
+     */
+    @Nullable
+    public byte[] compress(@NonNull byte[] data) {
+        if (!serverAcceptsGzip || data.length < MIN_SIZE_TO_COMPRESS) {
+            return null;
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+            gzip.write(data);
+        } catch (IOException e) {
+            Logger.e(TAG, e.toString());
+            return null;
+        }
+
+        byte[] compressed = out.toByteArray();
+        if (compressed.length >= data.length) {
+            return null;
+        }
+        return compressed;
+    }
+}
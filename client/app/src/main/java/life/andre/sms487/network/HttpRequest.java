@@ -0,0 +1,76 @@
+package life.andre.sms487.network;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+public class HttpRequest {
+    public static final long UNKNOWN_LENGTH = -1;
+
+    @NonNull
+    private final String url;
+    @NonNull
+    private final String contentType;
+    @NonNull
+    private final Map<String, String> headers;
+    @NonNull
+    private final BodyWriter bodyWriter;
+    private final long contentLength;
+
+    public HttpRequest(@NonNull String url, @NonNull String contentType, @NonNull Map<String, String> headers, @NonNull byte[] body) {
+        this(url, contentType, headers, (out) -> out.write(body), body.length);
+    }
+
+    /**
+     * Body of unknown length is produced by the writer while it is sent, it goes as chunked transfer encoding.
+     * The writer is called again for every retry.
+     */
+    public HttpRequest(@NonNull String url, @NonNull String contentType, @NonNull Map<String, String> headers, @NonNull BodyWriter bodyWriter) {
+        this(url, contentType, headers, bodyWriter, UNKNOWN_LENGTH);
+    }
+
+    private HttpRequest(
+        @NonNull String url,
+        @NonNull String contentType,
+        @NonNull Map<String, String> headers,
+        @NonNull BodyWriter bodyWriter,
+        long contentLength
+    ) {
+        this.url = url;
+        this.contentType = contentType;
+        this.headers = Collections.unmodifiableMap(new HashMap<>(headers));
+        this.bodyWriter = bodyWriter;
+        this.contentLength = contentLength;
+    }
+
+    @NonNull
+    public String getUrl() {
+        return url;
+    }
+
+    @NonNull
+    public String getContentType() {
+        return contentType;
+    }
+
+    @NonNull
+    public Map<String, String> getHeaders() {
+        return headers;
+    }
+
+    public long getContentLength() {
+        return contentLength;
+    }
+
+    public void writeBody(@NonNull OutputStream out) throws IOException {
+        bodyWriter.writeTo(out);
+    }
+
+    public interface BodyWriter {
+        void writeTo(@NonNull OutputStream out) throws IOException;
+    }
+}
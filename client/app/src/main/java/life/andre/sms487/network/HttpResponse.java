@@ -0,0 +1,54 @@
+package life.andre.sms487.network;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+public class HttpResponse {
+    private final int statusCode;
+    @NonNull
+    private final Map<String, String> headers;
+    @NonNull
+    private final byte[] body;
+
+    public HttpResponse(int statusCode, @NonNull Map<String, String> headers, @NonNull byte[] body) {
+        Map<String, String> headersCopy = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        headersCopy.putAll(headers);
+
+        this.statusCode = statusCode;
+        this.headers = Collections.unmodifiableMap(headersCopy);
+        this.body = body;
+    }
+
+    public boolean isSuccessful() {
+        return statusCode >= 200 && statusCode < 300;
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    @NonNull
+    public Map<String, String> getHeaders() {
+        return headers;
+    }
+
+    @Nullable
+    public String getHeader(@NonNull String name) {
+        return headers.get(name);
+    }
+
+    @NonNull
+    public byte[] getBody() {
+        return body;
+    }
+
+    @NonNull
+    public String getBodyAsString() {
+        return new String(body, StandardCharsets.UTF_8);
+    }
+}
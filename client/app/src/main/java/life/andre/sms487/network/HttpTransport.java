@@ -0,0 +1,19 @@
+package life.andre.sms487.network;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.util.function.Consumer;
+
+import life.andre.sms487.utils.ValueOrError;
+
+/**
+ * Sends requests for {@link ServerApi}.
+ * The callback gets a response for any HTTP status or an error when there was no response at all.
+ * It's called on a transport thread.
+ */
+public interface HttpTransport {
+    void post(@NonNull HttpRequest request, @NonNull Consumer<ValueOrError<HttpResponse, IOException>> callback);
+
+    void shutdown();
+}
@@ -0,0 +1,131 @@
+package life.andre.sms487.network;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+import life.andre.sms487.messages.MessageContainer;
+import life.andre.sms487.messages.MessageStorage;
+import life.andre.sms487.utils.DateUtil;
+
+/**
+ * Every message is encoded once, when it's caught. The item bytes are stored with the message
+ * and requests are assembled by concatenation, so resends don't encode anything.
+ */
+public class MessageJsonEncoder {
+    public static final int INITIAL_BUFFER_SIZE = 16 * 1024;
+    public static final int INITIAL_ITEM_BUFFER_SIZE = 512;
+
+    @NonNull
+    private final JsonFactory jsonFactory = new JsonFactory();
+    @NonNull
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(INITIAL_BUFFER_SIZE);
+    @NonNull
+    private final ByteArrayOutputStream itemBuffer = new ByteArrayOutputStream(INITIAL_ITEM_BUFFER_SIZE);
+    @NonNull
+    private final String deviceId;
+
+    public MessageJsonEncoder(@NonNull String deviceId) {
+        this.deviceId = deviceId;
+    }
+
+    /**
+     * Encodes messages that have no payload yet, e.g. caught right now or stored before payloads were introduced.
+     */
+    public synchronized void attachPayloads(@NonNull List<MessageContainer> messages) throws IOException {
+        for (MessageContainer msg : messages) {
+            if (msg.getPayload() == null) {
+                msg.setPayload(encodeItem(msg));
+            }
+        }
+    }
+
+    /**
+     * Joins message payloads into a JSON array.
+     * The internal buffer is reused between calls, so a batch is copied only once: into the result array.
+     */
+    @NonNull
+    public synchronized byte[] encode(@NonNull List<MessageContainer> messages) throws IOException {
+        buffer.reset();
+
+        buffer.write('[');
+        for (int i = 0; i < messages.size(); ++i) {
+            if (i > 0) {
+                buffer.write(',');
+            }
+            buffer.write(getPayload(messages.get(i)));
+        }
+        buffer.write(']');
+
+        return buffer.toByteArray();
+    }
+
+    /**
+     * Writes message payloads as newline-delimited JSON right into the stream, nothing is buffered here.
+     *
+     * @return count of written messages
+     */
+    public int encodeStream(@NonNull MessageStorage.MessageSource source, @NonNull OutputStream out) throws IOException {
+        return source.forEach((msg) -> {
+            out.write(getPayload(msg));
+            out.write('\n');
+        });
+    }
+
+    @NonNull
+    private byte[] getPayload(@NonNull MessageContainer msg) throws IOException {
+        byte[] payload = msg.getPayload();
+        if (payload != null) {
+            return payload;
+        }
+        synchronized (this) {
+            return encodeItem(msg);
+        }
+    }
+
+    @NonNull
+    private byte[] encodeItem(@NonNull MessageContainer msg) throws IOException {
+        itemBuffer.reset();
+        try (JsonGenerator gen = jsonFactory.createGenerator(itemBuffer, JsonEncoding.UTF8)) {
+            writeItem(gen, msg);
+        }
+        return itemBuffer.toByteArray();
+    }
+
+    private void writeItem(@NonNull JsonGenerator gen, @NonNull MessageContainer msg) throws IOException {
+        gen.writeStartObject();
+        writeNullableField(gen, "id", msg.getUid());
+        gen.writeStringField("device_id", deviceId);
+        gen.writeStringField("message_type", msg.getMessageType());
+        writeDateField(gen, "date_time", msg.getDateTime());
+        writeDateField(gen, "sms_date_time", msg.getSmsCenterDateTime());
+        writeNullableField(gen, "tel", msg.getAddressFrom());
+        writeNullableField(gen, "text", msg.getBody());
+        gen.writeEndObject();
+    }
+
+    /**
+     * Dates are stored as epoch millis, the server gets them in its string format.
+     */
+    private void writeDateField(@NonNull JsonGenerator gen, @NonNull String name, long millis) throws IOException {
+        if (millis == 0) {
+            return;
+        }
+        gen.writeStringField(name, DateUtil.formatDate(millis));
+    }
+
+    private void writeNullableField(@NonNull JsonGenerator gen, @NonNull String name, @Nullable String val) throws IOException {
+        if (val == null) {
+            return;
+        }
+        gen.writeStringField(name, val);
+    }
+}
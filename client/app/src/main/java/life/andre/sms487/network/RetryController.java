@@ -0,0 +1,200 @@
+package life.andre.sms487.network;
+
+import android.os.SystemClock;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.greenrobot.eventbus.EventBus;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+
+import life.andre.sms487.events.SenderStateChanged;
+import life.andre.sms487.logging.Logger;
+
+/**
+ * The only place that decides when the sender retries.
+ * Failures give exponential backoff with full jitter, Retry-After of 429 and 503 is honored.
+ * After several failures in a row the circuit opens and no requests are made until the backoff passes,
+ * then a single probe request is let through.
+ */
+public class RetryController {
+    public static final String TAG = "RTC";
+
+    public static final long BASE_DELAY = 2000;
+    public static final long MAX_DELAY = 10 * 60 * 1000;
+    public static final int FAILURES_TO_OPEN = 3;
+
+    public static final int CIRCUIT_CLOSED = 0;
+    public static final int CIRCUIT_OPEN = 1;
+    public static final int CIRCUIT_HALF_OPEN = 2;
+
+    @NonNull
+    private final Random random = new Random();
+
+    private int circuit = CIRCUIT_CLOSED;
+    private int failures = 0;
+    private long retryAt = 0;
+    private boolean probeInFlight = false;
+
+    public synchronized boolean allowRequest() {
+        switch (circuit) {
+            case CIRCUIT_CLOSED:
+                return true;
+            case CIRCUIT_OPEN:
+                if (SystemClock.elapsedRealtime() < retryAt) {
+                    return false;
+                }
+                setCircuit(CIRCUIT_HALF_OPEN);
+                probeInFlight = true;
+                return true;
+            default:
+                if (probeInFlight) {
+                    return false;
+                }
+                probeInFlight = true;
+                return true;
+        }
+    }
+
+    /**
+     * Gives the probe back when allowRequest() let it through but no request was made
+     */
+    public synchronized void cancelProbe() {
+        probeInFlight = false;
+    }
+
+    public synchronized void onSuccess() {
+        failures = 0;
+        retryAt = 0;
+        probeInFlight = false;
+        setCircuit(CIRCUIT_CLOSED);
+    }
+
+    /**
+     * @return delay before the next attempt in milliseconds
+     */
+    public synchronized long onFailure(@Nullable HttpResponse response) {
+        failures++;
+        probeInFlight = false;
+
+        long delay = getBackoffDelay();
+        long retryAfter = getRetryAfter(response);
+        if (retryAfter > delay) {
+            delay = Math.min(retryAfter, MAX_DELAY);
+        }
+        retryAt = SystemClock.elapsedRealtime() + delay;
+
+        if (circuit == CIRCUIT_HALF_OPEN || failures >= FAILURES_TO_OPEN) {
+            setCircuit(CIRCUIT_OPEN);
+        } else {
+            postState();
+        }
+
+        Logger.w(TAG, "Failure #" + failures + ", retry in " + delay + " ms");
+        return delay;
+    }
+
+    /**
+     * @return milliseconds to wait before requests are allowed again
+     */
+    public synchronized long getRetryDelay() {
+        return Math.max(0, retryAt - SystemClock.elapsedRealtime());
+    }
+
+    @NonNull
+    public synchronized State getState() {
+        return new State(circuit, failures, getRetryDelay());
+    }
+
+    private long getBackoffDelay() {
+        int exp = Math.min(failures - 1, 20);
+        long cap = Math.min(MAX_DELAY, BASE_DELAY << exp);
+        // Full jitter: devices that went offline together don't come back together
+        return BASE_DELAY / 2 + (long) (random.nextDouble() * cap);
+    }
+
+    private void setCircuit(int newCircuit) {
+        if (newCircuit == circuit) {
+            return;
+        }
+        Logger.i(TAG, "Circuit: " + State.getCircuitName(circuit) + " -> " + State.getCircuitName(newCircuit));
+        circuit = newCircuit;
+        postState();
+    }
+
+    private void postState() {
+        EventBus.getDefault().post(new SenderStateChanged(new State(circuit, failures, getRetryDelay())));
+    }
+
+    static long getRetryAfter(@Nullable HttpResponse response) {
+        if (response == null) {
+            return 0;
+        }
+
+        int statusCode = response.getStatusCode();
+        if (statusCode != 429 && statusCode != 503) {
+            return 0;
+        }
+
+        String header = response.getHeader("Retry-After");
+        if (header == null || header.trim().isEmpty()) {
+            return 0;
+        }
+        header = header.trim();
+
+        try {
+            return Long.parseLong(header) * 1000;
+        } catch (NumberFormatException ignored) {
+        }
+
+        try {
+            SimpleDateFormat httpDateFormat = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+            Date date = httpDateFormat.parse(header);
+            return date == null ? 0 : Math.max(0, date.getTime() - System.currentTimeMillis());
+        } catch (ParseException e) {
+            Logger.w(TAG, "Invalid Retry-After: " + header);
+            return 0;
+        }
+    }
+
+    public static class State {
+        public final int circuit;
+        public final int failures;
+        public final long retryDelay;
+
+        State(int circuit, int failures, long retryDelay) {
+            this.circuit = circuit;
+            this.failures = failures;
+            this.retryDelay = retryDelay;
+        }
+
+        @NonNull
+        static String getCircuitName(int circuit) {
+            switch (circuit) {
+                case CIRCUIT_CLOSED:
+                    return "closed";
+                case CIRCUIT_OPEN:
+                    return "open";
+                case CIRCUIT_HALF_OPEN:
+                    return "half-open";
+            }
+            return "unknown";
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            if (circuit == CIRCUIT_CLOSED && failures == 0) {
+                return "Sender: OK";
+            }
+            return "Sender: circuit " + getCircuitName(circuit) +
+                ", failures: " + failures +
+                ", retry in " + (retryDelay + 999) / 1000 + " s";
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package life.andre.sms487.network;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import life.andre.sms487.logging.Logger;
+
+/**
+ * Caps the number of requests in flight and the number of tasks waiting for a slot.
+ * A task gets a release callback and must call it when its request is finished,
+ * then the next pending task is started in the freed slot.
+ */
+public class SendWindow {
+    public static final String TAG = "SWN";
+
+    private static final int RUNNING = 0;
+    private static final int RETURNED = 1;
+    private static final int RELEASED_WHILE_RUNNING = 2;
+
+    private final int maxInFlight;
+    private final int maxPending;
+    @NonNull
+    private final Queue<Consumer<Runnable>> pending = new ArrayDeque<>();
+    private int inFlight = 0;
+
+    public SendWindow(int maxInFlight, int maxPending) {
+        this.maxInFlight = maxInFlight;
+        this.maxPending = maxPending;
+    }
+
+    /**
+     * @return false when the pending queue is full, the task is not taken then
+     */
+    public boolean submit(@NonNull Consumer<Runnable> task) {
+        synchronized (this) {
+            if (inFlight >= maxInFlight) {
+                if (pending.size() >= maxPending) {
+                    return false;
+                }
+                pending.add(task);
+                return true;
+            }
+            inFlight++;
+        }
+        drain(task);
+        return true;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    public synchronized int getPending() {
+        return pending.size();
+    }
+
+    /**
+     * Tasks that release their slot before returning, e.g. when nothing is sent,
+     * hand the next task to this loop instead of starting it deeper in the stack.
+     */
+    private void drain(@Nullable Consumer<Runnable> task) {
+        while (task != null) {
+            task = start(task);
+        }
+    }
+
+    /**
+     * @return the next task when the slot was released before the task returned
+     */
+    @Nullable
+    private Consumer<Runnable> start(@NonNull Consumer<Runnable> task) {
+        AtomicBoolean released = new AtomicBoolean(false);
+        AtomicInteger state = new AtomicInteger(RUNNING);
+        Runnable release = () -> {
+            if (!released.compareAndSet(false, true)) {
+                return;
+            }
+            if (!state.compareAndSet(RUNNING, RELEASED_WHILE_RUNNING)) {
+                drain(takeNext());
+            }
+        };
+
+        try {
+            task.accept(release);
+        } catch (RuntimeException e) {
+            Logger.e(TAG, e.toString());
+            release.run();
+        }
+
+        if (state.compareAndSet(RUNNING, RETURNED)) {
+            return null;
+        }
+        return takeNext();
+    }
+
+    @Nullable
+    private synchronized Consumer<Runnable> takeNext() {
+        Consumer<Runnable> next = pending.poll();
+        if (next == null) {
+            inFlight--;
+        }
+        return next;
+    }
+}
@@ -3,55 +3,133 @@ package life.andre.sms487.network;
 import android.annotation.SuppressLint;
 import android.content.Context;
 import android.os.Build;
-import android.util.Base64;
+import android.os.SystemClock;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
-import com.android.volley.*;
-import com.android.volley.toolbox.StringRequest;
-import com.android.volley.toolbox.Volley;
-
 import org.greenrobot.eventbus.EventBus;
+import org.greenrobot.eventbus.Subscribe;
+import org.greenrobot.eventbus.ThreadMode;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.nio.charset.StandardCharsets;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+import java.util.zip.GZIPOutputStream;
 
 import life.andre.sms487.events.MessagesStateChanged;
+import life.andre.sms487.events.SettingsChanged;
 import life.andre.sms487.logging.Logger;
+import life.andre.sms487.messages.CaptureJournal;
 import life.andre.sms487.messages.MessageContainer;
 import life.andre.sms487.messages.MessageResendWorker;
 import life.andre.sms487.messages.MessageStorage;
 import life.andre.sms487.settings.AppSettings;
+import life.andre.sms487.utils.BatchingQueue;
 import life.andre.sms487.utils.BgTask;
-import life.andre.sms487.utils.ValueThrottler;
+import life.andre.sms487.utils.ValueOrError;
 
 public class ServerApi {
     public static final String TAG = "SAPI";
     public static final String MESSAGE_TYPE_SMS = "sms";
     public static final String MESSAGE_TYPE_NOTIFICATION = "notification";
-    public static final long THROTTLE_DELAY = 500;
-    public static final int MESSAGES_TO_SEND = 42;
+    public static final int QUEUE_CAPACITY = 2000;
+    // Batches waiting for a request slot, more are left in the DB for the resend worker
+    public static final int SEND_QUEUE_CAPACITY = 8;
+    public static final int DRAIN_PAGE_SIZE = 200;
+    public static final long DRAIN_PAGE_TIMEOUT = 60000;
+
+    // SMS carry login codes: no coalescing delay
+    public static final long SMS_QUEUE_DELAY = 0;
+    public static final int SMS_REQUESTS_IN_FLIGHT = 2;
+    public static final long NOTIFICATION_QUEUE_MIN_DELAY = 500;
+    public static final long NOTIFICATION_QUEUE_MAX_DELAY = 3000;
+    public static final int NOTIFICATION_REQUESTS_IN_FLIGHT = 2;
+
+    // Backlog size when one streaming request is cheaper than batches
+    public static final int STREAM_MIN_BACKLOG = 1000;
+    // Rows of the stream can be claimed again after their lease, waiting longer makes no sense
+    public static final long STREAM_TIMEOUT = MessageStorage.LEASE_TIME;
+
+    // A thread for every request in flight and for the stream, so notifications never hold SMS in the dispatcher
+    public static final int HTTP_DISPATCHER_THREADS = SMS_REQUESTS_IN_FLIGHT + NOTIFICATION_REQUESTS_IN_FLIGHT + 1;
+    public static final int HTTP_TIMEOUT = 15000;
+
+    public static final int DRAIN_DONE = 0;
+    public static final int DRAIN_FAILED = 1;
+    // Nothing can be sent until the settings change, SettingsChanged schedules the next drain then
+    public static final int DRAIN_NOT_CONFIGURED = 2;
+    // The circuit is open, requests are refused until its delay passes
+    public static final int DRAIN_BACKING_OFF = 3;
+
+    private static final int STREAM_DONE = 0;
+    private static final int STREAM_FAILED = 1;
+    private static final int STREAM_USE_BATCHES = 2;
+
+    @NonNull
+    private static final Consumer<Boolean> IGNORE_RESULT = (success) -> {
+    };
 
     @SuppressLint("StaticFieldLeak")
     private static ServerApi instance;
 
     @NonNull
-    private final RequestQueue requestQueue;
+    private final HttpTransport transport;
+    @NonNull
+    private final Lane smsLane = new Lane("SmsLane", SMS_QUEUE_DELAY, SMS_QUEUE_DELAY, SMS_REQUESTS_IN_FLIGHT);
+    @NonNull
+    private final Lane notificationLane = new Lane(
+        "NotificationLane",
+        NOTIFICATION_QUEUE_MIN_DELAY,
+        NOTIFICATION_QUEUE_MAX_DELAY,
+        NOTIFICATION_REQUESTS_IN_FLIGHT
+    );
+    @NonNull
+    private final MessageJsonEncoder encoder = new MessageJsonEncoder(Build.MODEL);
+    @NonNull
+    private final GzipCompressor compressor = new GzipCompressor();
+    @NonNull
+    private final AdaptiveBatcher batcher = new AdaptiveBatcher();
     @NonNull
-    private final ValueThrottler<MessageContainer> throttler = new ValueThrottler<>(this::handleMessages, THROTTLE_DELAY);
+    private final RetryController retryController = new RetryController();
+    @NonNull
+    private final Queue<MessageContainer> spilledMessages = new ConcurrentLinkedQueue<>();
+    @NonNull
+    private final AtomicBoolean isSpillScheduled = new AtomicBoolean(false);
     @NonNull
     private final Context ctx;
+    private volatile boolean isStreamSupported = true;
 
     public static void init(@NonNull Context ctx) {
-        instance = new ServerApi(ctx);
+        init(ctx, new UrlConnectionTransport(HTTP_DISPATCHER_THREADS, HTTP_TIMEOUT));
+    }
+
+    public static void init(@NonNull Context ctx, @NonNull HttpTransport transport) {
+        if (instance != null) {
+            instance.smsLane.queue.shutdown();
+            instance.notificationLane.queue.shutdown();
+            instance.transport.shutdown();
+            EventBus.getDefault().unregister(instance);
+        }
+        instance = new ServerApi(ctx, transport);
+        EventBus.getDefault().register(instance);
     }
 
     @NonNull
@@ -59,111 +137,540 @@ public class ServerApi {
         return Objects.requireNonNull(instance, "Not initialized");
     }
 
-    private ServerApi(@NonNull Context ctx) {
-        requestQueue = Volley.newRequestQueue(ctx);
+    private ServerApi(@NonNull Context ctx, @NonNull HttpTransport transport) {
+        this.transport = transport;
         this.ctx = ctx;
     }
 
+    /**
+     * Messages caught while the server was not configured are sent as soon as it is
+     * @noinspection unused
+     */
+    @Subscribe(threadMode = ThreadMode.BACKGROUND)
+    public void onSettingsChanged(@NonNull SettingsChanged event) {
+        if (event.settings.isServerConfigured()) {
+            MessageResendWorker.scheduleOneTime(ctx);
+        }
+    }
+
+    @NonNull
+    public RetryController.State getSenderState() {
+        return retryController.getState();
+    }
+
+    /**
+     * The message is journaled right away on the caller thread, it's a memory copy.
+     * So it survives process death before it gets into the DB. Notifications are journaled at capture already.
+     */
     public void addMessage(@NonNull MessageContainer msg) {
-        throttler.handle(msg);
+        if (!msg.isJournaled()) {
+            CaptureJournal.getInstance().append(msg);
+        }
+        getLane(msg).queue.handle(msg);
     }
 
-    public void resendMessages() {
-        BgTask.run(() -> {
-            List<MessageContainer> messages = MessageStorage.getInstance().getNotSentMessages();
-            if (messages.isEmpty()) {
-                return null;
+    /**
+     * Sends stored messages page by page and waits until every page is acknowledged.
+     * Only one page is in memory at a time. Must be called from a background thread.
+     *
+     * @return one of DRAIN_* results, on DRAIN_FAILED the caller should retry later
+     */
+    public int drainMessages(@NonNull IntConsumer onProgress) throws InterruptedException {
+        int blocked = getDrainBlocker();
+        if (blocked != DRAIN_DONE) {
+            return blocked;
+        }
+
+        MessageStorage storage = MessageStorage.getInstance();
+        if (isStreamSupported && storage.countNotSent() >= STREAM_MIN_BACKLOG) {
+            if (streamMessages(onProgress) == STREAM_FAILED) {
+                return getDrainFailure();
             }
+            // Batches send the rest: messages that came during the stream or the whole backlog for old servers
+        }
 
-            int notSentCount = messages.size();
-            Logger.i(TAG, "Resend: try to resend " + notSentCount + " messages");
+        long beforeId = Long.MAX_VALUE;
+        int sentCount = 0;
 
-            for (MessageContainer message : messages) {
-                throttler.handle(message);
+        while (true) {
+            // Rows in flight are leased, so they are not claimed again here
+            List<MessageContainer> page = storage.claimNotSentPage(beforeId, DRAIN_PAGE_SIZE);
+            if (page.isEmpty()) {
+                return DRAIN_DONE;
             }
+            beforeId = page.get(page.size() - 1).getDbId();
 
-            return null;
-        });
+            Logger.i(TAG, "Resend: try to resend " + page.size() + " messages");
+            if (!sendPage(page)) {
+                return getDrainFailure();
+            }
+
+            sentCount += page.size();
+            onProgress.accept(sentCount);
+
+            if (page.size() < DRAIN_PAGE_SIZE) {
+                return DRAIN_DONE;
+            }
+        }
     }
 
-    private void handleMessages(@NonNull List<MessageContainer> messages) {
-        BgTask.run(() -> {
-            handleMessageBatches(messages);
-            return null;
+    /**
+     * @return DRAIN_DONE when requests can be made now
+     */
+    private int getDrainBlocker() {
+        if (!AppSettings.getInstance().getSnapshot().isServerConfigured()) {
+            return DRAIN_NOT_CONFIGURED;
+        }
+        RetryController.State state = retryController.getState();
+        if (state.circuit == RetryController.CIRCUIT_OPEN && state.retryDelay > 0) {
+            return DRAIN_BACKING_OFF;
+        }
+        return DRAIN_DONE;
+    }
+
+    private int getDrainFailure() {
+        int blocked = getDrainBlocker();
+        return blocked != DRAIN_DONE ? blocked : DRAIN_FAILED;
+    }
+
+    /**
+     * Sends the whole backlog in one chunked request of newline-delimited JSON written right from the DB,
+     * so memory use doesn't depend on the backlog size. Rows are leased with one token for the request.
+     */
+    private int streamMessages(@NonNull IntConsumer onProgress) throws InterruptedException {
+        AppSettings.Snapshot settings = AppSettings.getInstance().getSnapshot();
+        if (!settings.isServerConfigured() || !retryController.allowRequest()) {
+            return STREAM_FAILED;
+        }
+
+        MessageStorage storage = MessageStorage.getInstance();
+        long token = storage.leaseAllNotSent();
+        if (token == 0) {
+            retryController.cancelProbe();
+            return STREAM_DONE;
+        }
+
+        boolean isCompressed = compressor.isServerAcceptsGzip();
+        Map<String, String> headers = new HashMap<>();
+        headers.put("Authorization", settings.getAuthHeader());
+        if (isCompressed) {
+            headers.put("Content-Encoding", GzipCompressor.ENCODING);
+        }
+
+        MessageStorage.MessageSource source = (visitor) -> storage.forEachLeased(token, visitor);
+        AtomicInteger written = new AtomicInteger(-1);
+        HttpRequest request = new HttpRequest(
+            settings.serverUrl + "/add-sms-stream",
+            "application/x-ndjson; charset=utf-8",
+            headers,
+            (out) -> {
+                if (!isCompressed) {
+                    written.set(encoder.encodeStream(source, out));
+                } else {
+                    GZIPOutputStream gzip = new GZIPOutputStream(out, UrlConnectionTransport.BUFFER_SIZE);
+                    written.set(encoder.encodeStream(source, gzip));
+                    gzip.finish();
+                }
+                Logger.i(TAG, "Stream: messages written: " + written.get());
+            }
+        );
+
+        // The result is handled in the callback, so a late answer still acknowledges the lease
+        CountDownLatch done = new CountDownLatch(1);
+        AtomicInteger streamResult = new AtomicInteger(STREAM_FAILED);
+        transport.post(request, (result) -> {
+            try {
+                streamResult.set(handleStreamResult(token, written.get(), result, onProgress));
+            } finally {
+                done.countDown();
+            }
         });
+
+        if (!done.await(STREAM_TIMEOUT, TimeUnit.MILLISECONDS)) {
+            Logger.w(TAG, "Stream: not finished in time");
+            return STREAM_FAILED;
+        }
+        return streamResult.get();
     }
 
-    private void handleMessageBatches(@NonNull List<MessageContainer> messages) {
-        List<MessageContainer> toSend = new ArrayList<>();
-        for (MessageContainer msg : messages) {
-            toSend.add(msg);
-            if (toSend.size() >= MESSAGES_TO_SEND) {
-                addMessageList(toSend);
-                toSend.clear();
+    /**
+     * The server lists only messages it has not taken, so memory use doesn't depend on the backlog size:
+     * the rest of the lease is marked sent by its token.
+     */
+    private int handleStreamResult(
+        long token,
+        int written,
+        @NonNull ValueOrError<HttpResponse, IOException> result,
+        @NonNull IntConsumer onProgress
+    ) {
+        MessageStorage storage = MessageStorage.getInstance();
+        HttpResponse response = result.getValue();
+        if (response != null) {
+            compressor.handleResponseHeaders(response.getHeaders());
+        }
+
+        if (response == null || !response.isSuccessful()) {
+            storage.releaseLease(token);
+
+            int statusCode = response != null ? response.getStatusCode() : 0;
+            if (statusCode == 404) {
+                Logger.w(TAG, "Stream: server has no streaming endpoint, use batches");
+                isStreamSupported = false;
+                return STREAM_USE_BATCHES;
+            }
+            if (ApiErrorListener.isPoisonStatus(statusCode)) {
+                // Batches can find and quarantine the bad message
+                Logger.w(TAG, "Stream: rejected with " + statusCode + ", use batches");
+                return STREAM_USE_BATCHES;
             }
+
+            Logger.e(TAG, "Stream: " + (response != null ? "HTTP error: " + statusCode : String.valueOf(result.getError())));
+            if (statusCode == 415) {
+                compressor.disable();
+            }
+            retryController.onFailure(response);
+            return STREAM_FAILED;
+        }
+
+        retryController.onSuccess();
+
+        JSONObject resp = parseResponse(response.getBodyAsString());
+        if (resp == null) {
+            storage.releaseLease(token);
+            return STREAM_FAILED;
+        }
+
+        int broken = resp.optInt("broken", 0);
+        if (broken > 0) {
+            // Broken lines have no uids, batches acknowledge every message on its own
+            storage.releaseLease(token);
+            Logger.w(TAG, "Stream: " + broken + " lines are broken, use batches");
+            return STREAM_USE_BATCHES;
         }
 
-        if (!toSend.isEmpty()) {
-            addMessageList(toSend);
+        int lines = resp.optInt("lines", -1);
+        if (lines != written) {
+            // Lines after the cut were never seen by the server
+            storage.releaseLease(token);
+            Logger.w(TAG, "Stream: server has read " + lines + " of " + written + " lines");
+            return STREAM_FAILED;
         }
+
+        List<String> retryUids = toStringList(resp.optJSONArray("retry"));
+        List<String> rejectedUids = toStringList(resp.optJSONArray("rejected"));
+        int sent = storage.markLeaseSent(token, retryUids, rejectedUids);
+        EventBus.getDefault().post(new MessagesStateChanged());
+
+        onProgress.accept(sent);
+        Logger.i(TAG, "Stream: sent " + sent + ", retry " + retryUids.size() + ", rejected " + rejectedUids.size());
+        return retryUids.isEmpty() ? STREAM_DONE : STREAM_FAILED;
     }
 
-    private void addMessageList(@NonNull List<MessageContainer> messages) {
-        List<Long> dbIds = MessageStorage.getInstance().addMessages(messages);
+    @Nullable
+    private static JSONObject parseResponse(@NonNull String response) {
+        try {
+            return new JSONObject(response);
+        } catch (JSONException e) {
+            Logger.e(TAG, e.toString());
+            //noinspection CallToPrintStackTrace
+            e.printStackTrace();
+            return null;
+        }
+    }
 
-        JSONArray reqData = new JSONArray();
-        for (MessageContainer msg : messages) {
-            JSONObject item = createJsonRequestItem(msg);
-            if (item == null) {
-                continue;
+    @NonNull
+    private static List<String> toStringList(@Nullable JSONArray arr) {
+        if (arr == null) {
+            return Collections.emptyList();
+        }
+        return new ArrayList<>(toStringSet(arr));
+    }
+
+    @NonNull
+    private static Set<String> toStringSet(@NonNull JSONArray arr) {
+        Set<String> result = new HashSet<>();
+        for (int i = 0; i < arr.length(); ++i) {
+            String val = arr.optString(i, null);
+            if (val != null) {
+                result.add(val);
+            }
+        }
+        return result;
+    }
+
+    private boolean sendPage(@NonNull List<MessageContainer> page) throws InterruptedException {
+        List<MessageContainer> smsMessages = new ArrayList<>();
+        List<MessageContainer> notificationMessages = new ArrayList<>();
+        for (MessageContainer msg : page) {
+            (getLane(msg) == smsLane ? smsMessages : notificationMessages).add(msg);
+        }
+
+        List<List<MessageContainer>> smsBatches = batcher.split(smsMessages);
+        List<List<MessageContainer>> notificationBatches = batcher.split(notificationMessages);
+
+        CountDownLatch done = new CountDownLatch(smsBatches.size() + notificationBatches.size());
+        AtomicBoolean isSuccess = new AtomicBoolean(true);
+        Consumer<Boolean> onResult = (success) -> {
+            if (!success) {
+                isSuccess.set(false);
             }
-            reqData.put(item);
+            done.countDown();
+        };
+
+        submitBatches(smsLane.sendWindow, smsBatches, onResult);
+        submitBatches(notificationLane.sendWindow, notificationBatches, onResult);
+
+        if (!done.await(DRAIN_PAGE_TIMEOUT, TimeUnit.MILLISECONDS)) {
+            Logger.w(TAG, "Resend: page is not finished in time");
+            return false;
+        }
+        return isSuccess.get();
+    }
+
+    private void submitBatches(
+        @NonNull SendWindow sendWindow,
+        @NonNull List<List<MessageContainer>> batches,
+        @NonNull Consumer<Boolean> onResult
+    ) {
+        for (List<MessageContainer> batch : batches) {
+            submitMessageList(sendWindow, batch, onResult);
+        }
+    }
+
+    @NonNull
+    private Lane getLane(@NonNull MessageContainer msg) {
+        return MESSAGE_TYPE_SMS.equals(msg.getMessageType()) ? smsLane : notificationLane;
+    }
+
+    /**
+     * The queue is full: keep the message in the DB as not sent instead of growing the heap,
+     * the resend worker will pick it up later.
+     */
+    private void spillMessage(@NonNull MessageContainer msg) {
+        if (msg.getDbId() != 0) {
+            // Already stored, it is a resend
+            return;
+        }
+
+        spilledMessages.add(msg);
+        if (isSpillScheduled.compareAndSet(false, true)) {
+            BgTask.run(() -> {
+                storeSpilledMessages();
+                return null;
+            });
+        }
+    }
+
+    /**
+     * One storage write for everything spilled since the previous one
+     */
+    private void storeSpilledMessages() {
+        // Reset before draining: a message spilled after that schedules the next write
+        isSpillScheduled.set(false);
+
+        List<MessageContainer> messages = new ArrayList<>();
+        MessageContainer msg;
+        while ((msg = spilledMessages.poll()) != null) {
+            messages.add(msg);
+        }
+        if (messages.isEmpty()) {
+            return;
+        }
+
+        Logger.w(TAG, "Queue is full, spill " + messages.size() + " messages to storage");
+        attachPayloads(messages);
+        MessageStorage.getInstance().addMessages(messages);
+        MessageResendWorker.scheduleOneTime(ctx);
+    }
+
+    private void handleMessageBatches(@NonNull SendWindow sendWindow, @NonNull List<MessageContainer> messages) {
+        attachPayloads(messages);
+        for (List<MessageContainer> batch : batcher.split(messages)) {
+            addMessageList(sendWindow, batch);
+        }
+    }
+
+    private void addMessageList(@NonNull SendWindow sendWindow, @NonNull List<MessageContainer> messages) {
+        if (!AppSettings.getInstance().getSnapshot().isServerConfigured()) {
+            MessageStorage.getInstance().addMessages(messages);
+            Logger.w(TAG, "Server params are empty, skip sending");
+            return;
         }
 
-        AppSettings appSettings = AppSettings.getInstance();
-        String url = appSettings.getServerUrl();
-        String user = appSettings.getServerKey();
-        String key = appSettings.getServerKey();
+        MessageStorage.getInstance().addMessages(messages, true);
 
-        if (url.isEmpty() || user.isEmpty() || key.isEmpty()) {
+        submitMessageList(sendWindow, messages, IGNORE_RESULT);
+    }
+
+    /**
+     * The messages are stored already, so when the window is full they are left to the resend worker
+     */
+    private void submitMessageList(
+        @NonNull SendWindow sendWindow,
+        @NonNull List<MessageContainer> messages,
+        @NonNull Consumer<Boolean> onResult
+    ) {
+        if (sendWindow.submit((release) -> sendMessageList(sendWindow, messages, release, onResult))) {
+            return;
+        }
+
+        Logger.w(TAG, "Send queue is full, leave " + messages.size() + " messages to resend");
+        releaseMessages(messages);
+        MessageResendWorker.scheduleOneTime(ctx);
+        onResult.accept(false);
+    }
+
+    private void sendMessageList(
+        @NonNull SendWindow sendWindow,
+        @NonNull List<MessageContainer> queuedMessages,
+        @NonNull Runnable release,
+        @NonNull Consumer<Boolean> onResult
+    ) {
+        AppSettings.Snapshot settings = AppSettings.getInstance().getSnapshot();
+        if (!settings.isServerConfigured()) {
             Logger.w(TAG, "Server params are empty, skip sending");
+            releaseMessages(queuedMessages);
+            release.run();
+            onResult.accept(false);
+            return;
+        }
+
+        // The lease could expire while the batch was waiting for the slot
+        List<MessageContainer> messages = MessageStorage.getInstance().renewLeases(queuedMessages);
+        if (messages.size() < queuedMessages.size()) {
+            Logger.w(TAG, "Lease expired for " + (queuedMessages.size() - messages.size()) + " messages, they are resent by others");
+        }
+        if (messages.isEmpty()) {
+            release.run();
+            onResult.accept(true);
             return;
         }
 
-        this.requestQueue.add(new ApiAddMessageRequest(
+        if (!retryController.allowRequest()) {
+            long delay = retryController.getRetryDelay();
+            Logger.i(TAG, "Sender is backing off, postpone " + messages.size() + " messages for " + delay + " ms");
+            releaseMessages(messages);
+            MessageResendWorker.scheduleOneTime(ctx, delay);
+            release.run();
+            onResult.accept(false);
+            return;
+        }
+
+        byte[] reqData = encodeRequestData(messages);
+        if (reqData == null) {
+            retryController.cancelProbe();
+            releaseMessages(messages);
+            release.run();
+            onResult.accept(false);
+            return;
+        }
+
+        ApiAddMessageRequest request = new ApiAddMessageRequest(
             ctx,
-            url,
-            reqData.toString(),
-            dbIds
-        ));
+            compressor,
+            batcher,
+            retryController,
+            (rejected) -> isolatePoisonMessages(sendWindow, rejected),
+            settings,
+            reqData,
+            messages
+        );
+        transport.post(request.toHttpRequest(), (result) -> {
+            boolean isSuccess = false;
+            try {
+                isSuccess = request.handle(result);
+            } finally {
+                release.run();
+                onResult.accept(isSuccess);
+            }
+        });
     }
 
-    @Nullable
-    private JSONObject createJsonRequestItem(@NonNull MessageContainer msg) {
-        JSONObject item = new JSONObject();
+    /**
+     * Server has rejected the batch as a whole: split it in halves until the bad message is found
+     * and quarantine it, so it doesn't block other messages anymore.
+     */
+    private void isolatePoisonMessages(@NonNull SendWindow sendWindow, @NonNull List<MessageContainer> messages) {
+        int count = messages.size();
+        if (count == 1) {
+            MessageContainer msg = messages.get(0);
+            Logger.w(TAG, "Quarantine message " + msg.getUid());
+            markMessagesQuarantined(Collections.singletonList(msg.getDbId()));
+            return;
+        }
+
+        Logger.w(TAG, "Bisect rejected batch of " + count + " messages");
+        List<MessageContainer> left = new ArrayList<>(messages.subList(0, count / 2));
+        List<MessageContainer> right = new ArrayList<>(messages.subList(count / 2, count));
+        submitMessageList(sendWindow, left, IGNORE_RESULT);
+        submitMessageList(sendWindow, right, IGNORE_RESULT);
+    }
 
-        String text = msg.getBody();
-        String messageType = msg.getMessageType();
+    /**
+     * Gives leases back, so the next resend doesn't wait for them to expire.
+     */
+    private static void releaseMessages(@NonNull List<MessageContainer> messages) {
+        List<Long> dbIds = getDbIds(messages);
+        BgTask.run(() -> {
+            MessageStorage.getInstance().releaseMessages(dbIds);
+            return null;
+        });
+    }
+
+    @NonNull
+    private static List<Long> getDbIds(@NonNull List<MessageContainer> messages) {
+        List<Long> dbIds = new ArrayList<>();
+        for (MessageContainer msg : messages) {
+            dbIds.add(msg.getDbId());
+        }
+        return dbIds;
+    }
+
+    private static void markMessagesQuarantined(@NonNull List<Long> dbIds) {
+        BgTask.run(() -> {
+            MessageStorage.getInstance().markQuarantined(dbIds);
+            EventBus.getDefault().post(new MessagesStateChanged());
+            return null;
+        });
+    }
+
+    /**
+     * New messages are encoded once here and stored with their payloads, resends only join them.
+     */
+    private void attachPayloads(@NonNull List<MessageContainer> messages) {
+        for (MessageContainer msg : messages) {
+            if (msg.getPayload() == null) {
+                logMessageCaught(msg.getMessageType(), msg.getBody());
+            }
+        }
 
         try {
-            item.put("device_id", Build.MODEL)
-                .put("message_type", messageType)
-                .put("date_time", msg.getDateTime())
-                .put("sms_date_time", msg.getSmsCenterDateTime())
-                .put("tel", msg.getAddressFrom())
-                .put("text", text);
-        } catch (JSONException e) {
+            encoder.attachPayloads(messages);
+        } catch (IOException e) {
+            // Messages without payloads are encoded at sending
+            Logger.e(TAG, e.toString());
+            //noinspection CallToPrintStackTrace
+            e.printStackTrace();
+        }
+    }
+
+    @Nullable
+    private byte[] encodeRequestData(@NonNull List<MessageContainer> messages) {
+        byte[] reqData;
+        try {
+            reqData = encoder.encode(messages);
+        } catch (IOException e) {
             Logger.e(TAG, e.toString());
             //noinspection CallToPrintStackTrace
             e.printStackTrace();
             return null;
         }
 
-        logMessageSend(messageType, text);
-        return item;
+        Logger.i(TAG, "Sending " + messages.size() + " messages, " + reqData.length + " bytes");
+        return reqData;
     }
 
-    private void logMessageSend(@NonNull String messageType, @Nullable String text) {
+    private void logMessageCaught(@NonNull String messageType, @Nullable String text) {
         String logText = text != null ? text.replace('\n', ' ') : "null";
 
         int maxLogTextSize = 32;
@@ -171,82 +678,183 @@ public class ServerApi {
             logText = logText.substring(0, maxLogTextSize) + "…";
         }
 
-        String logLine = "Sending " + messageType + ": " + logText;
+        String logLine = "Caught " + messageType + ": " + logText;
         Logger.i(TAG, logLine);
     }
 
-    private static class ApiAddMessageRequest extends StringRequest {
+    /**
+     * Every priority class has its own queue and its own request slots,
+     * so a burst of notifications never stands in front of SMS.
+     */
+    private class Lane {
+        @NonNull
+        final SendWindow sendWindow;
+        @NonNull
+        final BatchingQueue<MessageContainer> queue;
+
+        Lane(@NonNull String name, long minDelay, long maxDelay, int maxInFlight) {
+            sendWindow = new SendWindow(maxInFlight, SEND_QUEUE_CAPACITY);
+            queue = new BatchingQueue<>(
+                name,
+                (messages) -> handleMessageBatches(sendWindow, messages),
+                ServerApi.this::spillMessage,
+                AdaptiveBatcher.MAX_MESSAGES,
+                QUEUE_CAPACITY,
+                minDelay,
+                maxDelay
+            );
+        }
+    }
+
+    private static class ApiAddMessageRequest {
         @NonNull
-        private final AppSettings appSettings = AppSettings.getInstance();
+        private final String url;
+        @NonNull
+        private final String authHeader;
+        @NonNull
+        private final byte[] requestBody;
+        private final boolean isCompressed;
 
         @NonNull
-        private final String requestBody;
+        private final GzipCompressor compressor;
+        @NonNull
+        private final ApiResponseListener responseListener;
+        @NonNull
+        private final ApiErrorListener errorListener;
 
         ApiAddMessageRequest(
             @NonNull Context ctx,
-            @NonNull String url,
-            @NonNull String requestBody,
-            @NonNull List<Long> dbIds
+            @NonNull GzipCompressor compressor,
+            @NonNull AdaptiveBatcher batcher,
+            @NonNull RetryController retryController,
+            @NonNull Consumer<List<MessageContainer>> poisonHandler,
+            @NonNull AppSettings.Snapshot settings,
+            @NonNull byte[] requestBody,
+            @NonNull List<MessageContainer> messages
         ) {
-            super(Request.Method.POST, url + "/add-sms", new ApiResponseListener(dbIds), new ApiErrorListener(ctx));
-            this.requestBody = requestBody;
-            this.setRetryPolicy(new DefaultRetryPolicy(1000, 10, 2));
-            this.setShouldRetryConnectionErrors(true);
-            this.setShouldRetryServerErrors(true);
+            this.url = settings.serverUrl + "/add-sms";
+            this.authHeader = settings.getAuthHeader();
+            this.compressor = compressor;
+            this.responseListener = new ApiResponseListener(ctx, messages, batcher, retryController);
+            this.errorListener = new ApiErrorListener(ctx, compressor, batcher, retryController, poisonHandler, messages);
+
+            byte[] compressed = compressor.compress(requestBody);
+            this.requestBody = compressed != null ? compressed : requestBody;
+            this.isCompressed = compressed != null;
         }
 
         @NonNull
-        @Override
-        public Map<String, String> getHeaders() {
-            Map<String, String> headers = new HashMap<>();
-            headers.put("Authorization", basicAuthHeader());
-            return headers;
+        HttpRequest toHttpRequest() {
+            return new HttpRequest(url, "application/json; charset=utf-8", getHeaders(), requestBody);
         }
 
-        private String basicAuthHeader() {
-            String user = appSettings.getServerUser();
-            String key = appSettings.getServerKey();
-
-            String creds = user + ":" + key;
-            String b64 = Base64.encodeToString(creds.getBytes(StandardCharsets.UTF_8), Base64.NO_WRAP);
-
-            return "Basic " + b64;
-        }
+        /**
+         * @return true when the server has taken care of every message of the request
+         */
+        boolean handle(@NonNull ValueOrError<HttpResponse, IOException> result) {
+            HttpResponse response = result.getValue();
+            if (response != null) {
+                compressor.handleResponseHeaders(response.getHeaders());
+            }
 
-        @NonNull
-        @Override
-        public String getBodyContentType() {
-            return "application/json; charset=utf-8";
+            if (response != null && response.isSuccessful()) {
+                return responseListener.onResponse(response.getBodyAsString());
+            }
+            return errorListener.onErrorResponse(result);
         }
 
         @NonNull
-        @Override
-        public byte[] getBody() {
-            return requestBody.getBytes(StandardCharsets.UTF_8);
+        private Map<String, String> getHeaders() {
+            Map<String, String> headers = new HashMap<>();
+            headers.put("Authorization", authHeader);
+            if (isCompressed) {
+                headers.put("Content-Encoding", GzipCompressor.ENCODING);
+            }
+            return headers;
         }
     }
 
-    private static class ApiResponseListener implements Response.Listener<String> {
+    private static class ApiResponseListener {
+        @NonNull
+        private final Context ctx;
+        @NonNull
+        private final List<MessageContainer> messages;
         @NonNull
-        private final List<Long> dbIds;
+        private final AdaptiveBatcher batcher;
+        @NonNull
+        private final RetryController retryController;
+        private final long startTime = SystemClock.elapsedRealtime();
 
-        ApiResponseListener(@NonNull List<Long> dbIds) {
-            this.dbIds = dbIds;
+        ApiResponseListener(
+            @NonNull Context ctx,
+            @NonNull List<MessageContainer> messages,
+            @NonNull AdaptiveBatcher batcher,
+            @NonNull RetryController retryController
+        ) {
+            this.ctx = ctx;
+            this.messages = messages;
+            this.batcher = batcher;
+            this.retryController = retryController;
         }
 
-        @Override
-        public void onResponse(@Nullable String response) {
-            markMessagesSent();
+        public boolean onResponse(@NonNull String response) {
+            batcher.onSuccess(SystemClock.elapsedRealtime() - startTime);
+            retryController.onSuccess();
 
-            if (response == null) {
+            if (response.isEmpty()) {
                 Logger.i(TAG, "Unknown request success");
-                return;
+                markMessagesSent(getDbIds(messages));
+                return true;
+            }
+
+            JSONObject resp = parseResponse(response);
+            logResponseDetails(resp);
+
+            JSONArray acks = resp != null ? resp.optJSONArray("acks") : null;
+            if (acks == null) {
+                // Old server acknowledges the whole batch
+                markMessagesSent(getDbIds(messages));
+                return true;
+            }
+
+            JSONArray rejected = resp.optJSONArray("rejected");
+            return handleAcks(acks, rejected != null ? toStringSet(rejected) : Collections.emptySet());
+        }
+
+        /**
+         * Rejected messages can never be taken by the server, they are quarantined instead of retried
+         */
+        private boolean handleAcks(@NonNull JSONArray acks, @NonNull Set<String> rejectedUids) {
+            Set<String> ackedUids = toStringSet(acks);
+
+            List<Long> ackedIds = new ArrayList<>();
+            List<Long> rejectedIds = new ArrayList<>();
+            List<MessageContainer> notAcked = new ArrayList<>();
+            for (MessageContainer msg : messages) {
+                if (ackedUids.contains(msg.getUid())) {
+                    ackedIds.add(msg.getDbId());
+                } else if (rejectedUids.contains(msg.getUid())) {
+                    rejectedIds.add(msg.getDbId());
+                } else {
+                    notAcked.add(msg);
+                }
+            }
+            markMessagesSent(ackedIds);
+            if (!rejectedIds.isEmpty()) {
+                Logger.w(TAG, "Rejected by server: " + rejectedIds.size() + " of " + messages.size());
+                markMessagesQuarantined(rejectedIds);
             }
 
-            logResponseDetails(response);
+            if (!notAcked.isEmpty()) {
+                Logger.w(TAG, "Not acknowledged: " + notAcked.size() + " of " + messages.size() + ", will retry");
+                releaseMessages(notAcked);
+                MessageResendWorker.scheduleOneTime(ctx);
+                return false;
+            }
+            return true;
         }
 
-        private void markMessagesSent() {
+        private void markMessagesSent(@NonNull List<Long> dbIds) {
             BgTask.run(() -> {
                 MessageStorage.getInstance().markSent(dbIds);
                 EventBus.getDefault().post(new MessagesStateChanged());
@@ -254,49 +862,92 @@ public class ServerApi {
             });
         }
 
-        private void logResponseDetails(@NonNull String response) {
-            try {
-                JSONObject resp = new JSONObject(response);
+        private void logResponseDetails(@Nullable JSONObject resp) {
+            if (resp == null) {
+                return;
+            }
 
-                String status = resp.optString("status", "UNK");
-                int added = resp.optInt("added", -1);
+            String status = resp.optString("status", "UNK");
+            int added = resp.optInt("added", -1);
 
-                Logger.i(TAG, "Added: " + added + ": " + status);
-            } catch (JSONException e) {
-                Logger.e(TAG, e.toString());
-                //noinspection CallToPrintStackTrace
-                e.printStackTrace();
-            }
+            Logger.i(TAG, "Added: " + added + ": " + status);
         }
     }
 
-    private static class ApiErrorListener implements Response.ErrorListener {
+    private static class ApiErrorListener {
         @NonNull
         private final Context ctx;
+        @NonNull
+        private final GzipCompressor compressor;
+        @NonNull
+        private final AdaptiveBatcher batcher;
+        @NonNull
+        private final RetryController retryController;
+        @NonNull
+        private final Consumer<List<MessageContainer>> poisonHandler;
+        @NonNull
+        private final List<MessageContainer> messages;
 
-        public ApiErrorListener(@NonNull Context ctx) {
+        public ApiErrorListener(
+            @NonNull Context ctx,
+            @NonNull GzipCompressor compressor,
+            @NonNull AdaptiveBatcher batcher,
+            @NonNull RetryController retryController,
+            @NonNull Consumer<List<MessageContainer>> poisonHandler,
+            @NonNull List<MessageContainer> messages
+        ) {
             this.ctx = ctx;
+            this.compressor = compressor;
+            this.batcher = batcher;
+            this.retryController = retryController;
+            this.poisonHandler = poisonHandler;
+            this.messages = messages;
         }
 
-        @Override
-        public void onErrorResponse(@NonNull VolleyError error) {
-            MessageResendWorker.scheduleOneTime(ctx);
-
-            String finalErrorMessage = getFinalErrorMessage(error);
+        /**
+         * @return true when the messages are taken care of anyway: poison isolation has started
+         */
+        public boolean onErrorResponse(@NonNull ValueOrError<HttpResponse, IOException> result) {
+            String finalErrorMessage = getFinalErrorMessage(result);
             Logger.e(TAG, finalErrorMessage);
 
+            HttpResponse response = result.getValue();
+            if (response != null && isPoisonStatus(response.getStatusCode())) {
+                // The server is up and answers, it's the data that is bad
+                retryController.onSuccess();
+                poisonHandler.accept(messages);
+                return true;
+            }
+
+            releaseMessages(messages);
+            batcher.onFailure();
+            if (response != null && response.getStatusCode() == 415) {
+                compressor.disable();
+            }
+
+            long delay = retryController.onFailure(response);
+            MessageResendWorker.scheduleOneTime(ctx, delay);
+
             EventBus.getDefault().post(new MessagesStateChanged());
+            return false;
+        }
+
+        /**
+         * These client errors are caused by the data itself, so the same batch will fail again and again.
+         * A plain 400 is not one of them: server answers it to a body broken on the way, e.g. a cut gzip stream.
+         * Other 4xx are about auth, URL or server load and are not specific to messages.
+         */
+        private static boolean isPoisonStatus(int statusCode) {
+            return statusCode == 413 || statusCode == 422;
         }
 
         @NonNull
-        private String getFinalErrorMessage(@NonNull VolleyError error) {
-            StringBuilder err = new StringBuilder(error.toString());
-            if (error.networkResponse != null) {
-                err.append(": ")
-                        .append(error.networkResponse.statusCode).append(": ")
-                        .append(new String(error.networkResponse.data, StandardCharsets.UTF_8));
+        private String getFinalErrorMessage(@NonNull ValueOrError<HttpResponse, IOException> result) {
+            HttpResponse response = result.getValue();
+            if (response == null) {
+                return String.valueOf(result.getError());
             }
-            return err.toString();
+            return "HTTP error: " + response.getStatusCode() + ": " + response.getBodyAsString();
         }
     }
 }
@@ -0,0 +1,151 @@
+package life.andre.sms487.network;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import life.andre.sms487.utils.ValueOrError;
+
+/**
+ * Network-only transport on top of {@link HttpURLConnection}: no response cache, no disk I/O.
+ * Connections are kept alive and reused from the platform connection pool with its default settings,
+ * requests are executed on a fixed number of dispatcher threads.
+ * Depends on plain Java only, so it can be run in JVM tests against a local HTTP server.
+ */
+public class UrlConnectionTransport implements HttpTransport {
+    public static final int BUFFER_SIZE = 8 * 1024;
+    public static final int CHUNK_SIZE = 32 * 1024;
+
+    @NonNull
+    private final ExecutorService executor;
+    private final int timeoutMillis;
+
+    public UrlConnectionTransport(int dispatcherThreads, int timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+        executor = Executors.newFixedThreadPool(dispatcherThreads, new DispatcherThreadFactory());
+    }
+
+    /**
+     * The callback is called exactly once whatever happens, callers hold send slots and latches until then.
+     */
+    @Override
+    public void post(@NonNull HttpRequest request, @NonNull Consumer<ValueOrError<HttpResponse, IOException>> callback) {
+        try {
+            executor.execute(() -> callback.accept(executeSafely(request)));
+        } catch (RejectedExecutionException e) {
+            callback.accept(new ValueOrError<>(new IOException("Transport is shut down", e)));
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * Runtime errors come e.g. from body writers reading the DB or from a URL that is not HTTP.
+     * Retries are made by RetryController, not here.
+     */
+    @NonNull
+    private ValueOrError<HttpResponse, IOException> executeSafely(@NonNull HttpRequest request) {
+        try {
+            return new ValueOrError<>(execute(request));
+        } catch (IOException e) {
+            return new ValueOrError<>(e);
+        } catch (RuntimeException e) {
+            return new ValueOrError<>(new IOException("Request failed: " + e, e));
+        }
+    }
+
+    @NonNull
+    private HttpResponse execute(@NonNull HttpRequest request) throws IOException {
+        long contentLength = request.getContentLength();
+
+        HttpURLConnection conn = (HttpURLConnection) new URL(request.getUrl()).openConnection();
+        conn.setRequestMethod("POST");
+        conn.setUseCaches(false);
+        conn.setDoOutput(true);
+        conn.setConnectTimeout(timeoutMillis);
+        conn.setReadTimeout(timeoutMillis);
+        if (contentLength == HttpRequest.UNKNOWN_LENGTH) {
+            conn.setChunkedStreamingMode(CHUNK_SIZE);
+        } else {
+            conn.setFixedLengthStreamingMode(contentLength);
+        }
+        conn.setRequestProperty("Content-Type", request.getContentType());
+        for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+            conn.setRequestProperty(header.getKey(), header.getValue());
+        }
+
+        try {
+            try (OutputStream out = conn.getOutputStream()) {
+                request.writeBody(out);
+            }
+
+            int statusCode = conn.getResponseCode();
+            InputStream in = statusCode >= 400 ? conn.getErrorStream() : conn.getInputStream();
+
+            // The body must be read to the end, otherwise the connection is not returned to the pool
+            return new HttpResponse(statusCode, getResponseHeaders(conn), readFully(in));
+        } catch (IOException | RuntimeException e) {
+            conn.disconnect();
+            throw e;
+        }
+    }
+
+    @NonNull
+    private static Map<String, String> getResponseHeaders(@NonNull HttpURLConnection conn) {
+        Map<String, String> headers = new HashMap<>();
+        for (Map.Entry<String, List<String>> header : conn.getHeaderFields().entrySet()) {
+            String name = header.getKey();
+            List<String> values = header.getValue();
+            if (name != null && values != null && !values.isEmpty()) {
+                headers.put(name, String.join(", ", values));
+            }
+        }
+        return headers;
+    }
+
+    @NonNull
+    private static byte[] readFully(@Nullable InputStream in) throws IOException {
+        if (in == null) {
+            return new byte[0];
+        }
+
+        try (InputStream stream = in) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = stream.read(buf)) != -1) {
+                out.write(buf, 0, read);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    private static class DispatcherThreadFactory implements ThreadFactory {
+        private final AtomicInteger counter = new AtomicInteger();
+
+        @Override
+        public Thread newThread(@NonNull Runnable r) {
+            Thread thread = new Thread(r, "HttpDispatcher-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
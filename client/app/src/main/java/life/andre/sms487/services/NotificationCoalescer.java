@@ -0,0 +1,174 @@
+package life.andre.sms487.services;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import life.andre.sms487.logging.Logger;
+import life.andre.sms487.messages.MessageContainer;
+
+/**
+ * Collapses reposts of the same notification.
+ * The first version of a notification key opens a window, later versions in the window replace it,
+ * and only the latest one is emitted when the window is over.
+ * A repost with the same text as the last emitted version is skipped for a while after that emit.
+ */
+public class NotificationCoalescer {
+    public static final String TAG = "NCL";
+    public static final long DEFAULT_WINDOW = 2000;
+    public static final long DUPLICATE_WINDOW = TimeUnit.MINUTES.toMillis(1);
+    public static final int MAX_REMEMBERED_KEYS = 512;
+
+    @NonNull
+    private final Consumer<MessageContainer> output;
+    @NonNull
+    private final Consumer<MessageContainer> onDropped;
+    private final long windowMillis;
+
+    @NonNull
+    private final ScheduledExecutorService scheduler;
+    @NonNull
+    private final Map<String, MessageContainer> pending = new HashMap<>();
+    @NonNull
+    private final Map<String, Emitted> lastEmitted = new LinkedHashMap<String, Emitted>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Emitted> eldest) {
+            return size() > MAX_REMEMBERED_KEYS;
+        }
+    };
+
+    private long coalescedCount = 0;
+    private boolean isShutdown = false;
+
+    private static class Emitted {
+        @Nullable
+        final String body;
+        final long emittedAt;
+
+        Emitted(@Nullable String body, long emittedAt) {
+            this.body = body;
+            this.emittedAt = emittedAt;
+        }
+    }
+
+    /**
+     * @param onDropped gets versions that are replaced or skipped, they are never emitted
+     */
+    public NotificationCoalescer(
+        @NonNull Consumer<MessageContainer> output,
+        @NonNull Consumer<MessageContainer> onDropped,
+        long windowMillis
+    ) {
+        this.output = output;
+        this.onDropped = onDropped;
+        this.windowMillis = windowMillis;
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "NotificationCoalescer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * After shutdown messages go to the output right away
+     */
+    public void add(@NonNull String key, @NonNull MessageContainer msg) {
+        MessageContainer dropped;
+        synchronized (this) {
+            MessageContainer current = isShutdown ? null : pending.get(key);
+            if (current != null) {
+                pending.put(key, msg);
+                dropped = current;
+                coalescedCount++;
+            } else if (isDuplicate(key, msg, now())) {
+                dropped = msg;
+                coalescedCount++;
+            } else if (windowMillis > 0 && !isShutdown) {
+                pending.put(key, msg);
+                scheduler.schedule(() -> emit(key), windowMillis, TimeUnit.MILLISECONDS);
+                return;
+            } else {
+                lastEmitted.put(key, new Emitted(msg.getBody(), now()));
+                dropped = null;
+            }
+        }
+
+        if (dropped != null) {
+            onDropped.accept(dropped);
+            return;
+        }
+        output.accept(msg);
+    }
+
+    public synchronized long getCoalescedCount() {
+        return coalescedCount;
+    }
+
+    /**
+     * Emits everything that is pending at once
+     */
+    public void shutdown() {
+        List<MessageContainer> rest;
+        synchronized (this) {
+            isShutdown = true;
+            scheduler.shutdownNow();
+
+            rest = new ArrayList<>(pending.values());
+            pending.clear();
+        }
+
+        for (MessageContainer msg : rest) {
+            output.accept(msg);
+        }
+    }
+
+    private void emit(@NonNull String key) {
+        MessageContainer msg;
+        boolean isDuplicate;
+        synchronized (this) {
+            msg = pending.remove(key);
+            if (msg == null) {
+                return;
+            }
+            // The text may have come back to the emitted version during the window
+            long now = now();
+            isDuplicate = isDuplicate(key, msg, now);
+            if (isDuplicate) {
+                coalescedCount++;
+            } else {
+                lastEmitted.put(key, new Emitted(msg.getBody(), now));
+            }
+        }
+
+        try {
+            if (isDuplicate) {
+                onDropped.accept(msg);
+                return;
+            }
+            output.accept(msg);
+        } catch (Exception e) {
+            Logger.e(TAG, "Emit error: " + e);
+        }
+    }
+
+    private boolean isDuplicate(@NonNull String key, @NonNull MessageContainer msg, long now) {
+        Emitted emitted = lastEmitted.get(key);
+        return emitted != null && now - emitted.emittedAt < DUPLICATE_WINDOW && Objects.equals(emitted.body, msg.getBody());
+    }
+
+    // Monotonic, so windows don't jump with the wall clock
+    private static long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+}
@@ -0,0 +1,199 @@
+package life.andre.sms487.services;
+
+import android.app.Notification;
+import android.os.Bundle;
+import android.service.notification.StatusBarNotification;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import life.andre.sms487.logging.Logger;
+import life.andre.sms487.messages.CaptureJournal;
+import life.andre.sms487.messages.MessageContainer;
+import life.andre.sms487.messages.MessageFilter;
+import life.andre.sms487.network.ServerApi;
+import life.andre.sms487.settings.AppSettings;
+import life.andre.sms487.utils.BatchingQueue;
+
+/**
+ * Takes notifications from the listener's main thread and filters them on its own thread.
+ * The main thread only copies a few fields and journals the message, the hand-off queue is bounded and drops when it's full.
+ */
+public class NotificationIngestor {
+    public static final String TAG = "NIN";
+    public static final int QUEUE_CAPACITY = 256;
+    public static final int MAX_BATCH_SIZE = 32;
+    public static final int STATS_INTERVAL = 100;
+
+    @NonNull
+    private final NotificationCoalescer coalescer;
+    @NonNull
+    private final PackageRateLimiter rateLimiter;
+    @NonNull
+    private final BatchingQueue<Snapshot> queue;
+
+    @NonNull
+    private final AtomicLong receivedCount = new AtomicLong();
+    @NonNull
+    private final AtomicLong droppedCount = new AtomicLong();
+    @NonNull
+    private final AtomicLong filteredCount = new AtomicLong();
+    @NonNull
+    private final AtomicInteger maxQueueDepth = new AtomicInteger();
+    private long processedCount = 0;
+
+    static class Snapshot {
+        @NonNull
+        final String key;
+        @NonNull
+        final String packageName;
+        final long capturedAt;
+        final long postTime;
+        @Nullable
+        final CharSequence title;
+        @Nullable
+        final CharSequence text;
+        // Null when there is no text, such a notification is skipped
+        @Nullable
+        final MessageContainer msg;
+
+        Snapshot(@NonNull StatusBarNotification sbn) {
+            Bundle extras = sbn.getNotification().extras;
+
+            key = sbn.getKey();
+            packageName = sbn.getPackageName();
+            capturedAt = System.currentTimeMillis();
+            postTime = sbn.getPostTime();
+            title = extras.getCharSequence(Notification.EXTRA_TITLE);
+            text = extras.getCharSequence(Notification.EXTRA_TEXT);
+            msg = createMessage();
+        }
+
+        @Nullable
+        private MessageContainer createMessage() {
+            String titleText = title == null ? "" : title.toString();
+            String textText = text == null ? "" : text.toString();
+
+            String fullText = (titleText + "\n" + textText).trim();
+            if (fullText.isEmpty()) {
+                return null;
+            }
+
+            return new MessageContainer(
+                ServerApi.MESSAGE_TYPE_NOTIFICATION,
+                packageName, capturedAt, postTime, fullText
+            );
+        }
+    }
+
+    /**
+     * @param coalesceWindowMillis reposts of a notification key in this window are collapsed, 0 turns it off
+     */
+    public NotificationIngestor(@NonNull ServerApi serverApi, long coalesceWindowMillis) {
+        // Reposts are collapsed first, so they don't eat the package budget
+        rateLimiter = new PackageRateLimiter(
+            serverApi::addMessage, NotificationIngestor::resolve, PackageRateLimiter.DEFAULT_BUDGET,
+            PackageRateLimiter.DEFAULT_WINDOW, PackageRateLimiter.DEFAULT_MUTE_TIME
+        );
+        coalescer = new NotificationCoalescer(rateLimiter::add, NotificationIngestor::resolve, coalesceWindowMillis);
+        // No delay: the queue is used only for hand-off, messages are batched later by ServerApi
+        queue = new BatchingQueue<>(
+            "NotificationIngestor", this::handleSnapshots, this::dropSnapshot,
+            MAX_BATCH_SIZE, QUEUE_CAPACITY, 0, 0
+        );
+    }
+
+    /**
+     * Called on the main thread. The message is journaled before it's queued, it's a memory copy,
+     * so it survives process death in the queue, coalescer and rate limiter.
+     * Every message that is dropped on purpose on the way is resolved in the journal.
+     */
+    public void add(@NonNull StatusBarNotification sbn) {
+        receivedCount.incrementAndGet();
+
+        Snapshot snapshot = new Snapshot(sbn);
+        if (snapshot.msg != null) {
+            CaptureJournal.getInstance().append(snapshot.msg);
+        }
+
+        if (queue.handle(snapshot)) {
+            maxQueueDepth.accumulateAndGet(queue.size(), Math::max);
+        }
+    }
+
+    public void shutdown() {
+        queue.shutdown();
+        coalescer.shutdown();
+        rateLimiter.shutdown();
+        logStats();
+    }
+
+    @NonNull
+    public String getStats() {
+        return "received: " + receivedCount.get() +
+            ", dropped: " + droppedCount.get() +
+            ", filtered: " + filteredCount.get() +
+            ", coalesced: " + coalescer.getCoalescedCount() +
+            ", " + rateLimiter.getStats() +
+            ", queue depth: " + queue.size() +
+            ", max queue depth: " + maxQueueDepth.get();
+    }
+
+    private void dropSnapshot(@NonNull Snapshot snapshot) {
+        resolve(snapshot.msg);
+        long dropped = droppedCount.incrementAndGet();
+        // Logging on every drop would load the main thread even more
+        if (Long.bitCount(dropped) == 1) {
+            Logger.w(TAG, "Queue is full, notification from " + snapshot.packageName + " is dropped. " + getStats());
+        }
+    }
+
+    private void handleSnapshots(@NonNull List<Snapshot> snapshots) {
+        for (Snapshot snapshot : snapshots) {
+            MessageContainer msg = convert(snapshot);
+            if (msg != null) {
+                coalescer.add(snapshot.key, msg);
+            }
+        }
+
+        long prevProcessed = processedCount;
+        processedCount += snapshots.size();
+        if (prevProcessed / STATS_INTERVAL != processedCount / STATS_INTERVAL) {
+            logStats();
+        }
+    }
+
+    @Nullable
+    private MessageContainer convert(@NonNull Snapshot snapshot) {
+        if (snapshot.msg == null) {
+            Logger.w(TAG, "No text in message");
+            return null;
+        }
+
+        // Settings are loaded here if they are not yet, so this check is exact unlike the one on the main thread
+        MessageFilter filter = AppSettings.getInstance().getMessageFilter();
+        boolean isAccepted = filter.acceptsSource(ServerApi.MESSAGE_TYPE_NOTIFICATION, snapshot.packageName) &&
+            filter.acceptsContent(snapshot.title, snapshot.text);
+        if (!isAccepted) {
+            filteredCount.incrementAndGet();
+            resolve(snapshot.msg);
+            return null;
+        }
+
+        return snapshot.msg;
+    }
+
+    private static void resolve(@Nullable MessageContainer msg) {
+        if (msg != null) {
+            CaptureJournal.getInstance().resolve(msg);
+        }
+    }
+
+    private void logStats() {
+        Logger.i(TAG, "Stats: " + getStats());
+    }
+}
@@ -6,7 +6,6 @@ import android.app.NotificationManager;
 import android.app.Service;
 import android.content.Context;
 import android.content.pm.ServiceInfo;
-import android.os.Bundle;
 import android.service.notification.NotificationListenerService;
 import android.service.notification.StatusBarNotification;
 
@@ -14,21 +13,21 @@ import androidx.annotation.NonNull;
 
 import life.andre.sms487.R;
 import life.andre.sms487.logging.Logger;
-import life.andre.sms487.messages.MessageContainer;
+import life.andre.sms487.messages.MessageFilter;
 import life.andre.sms487.network.ServerApi;
-import life.andre.sms487.utils.DateUtil;
+import life.andre.sms487.settings.AppSettings;
 
 public class NotificationListener extends NotificationListenerService {
     public static final String TAG = "NTF";
     public static final String CHANNEL_ID = "NotificationListener::ServiceMessage";
     public static final int RUN_ID = 1;
 
-    protected ServerApi serverApi;
+    protected NotificationIngestor ingestor;
 
     @Override
     public void onCreate() {
         super.onCreate();
-        serverApi = ServerApi.getInstance();
+        ingestor = new NotificationIngestor(ServerApi.getInstance(), NotificationCoalescer.DEFAULT_WINDOW);
 
         createServiceMessage();
     }
@@ -36,6 +35,7 @@ public class NotificationListener extends NotificationListenerService {
     @Override
     public void onDestroy() {
         super.onDestroy();
+        ingestor.shutdown();
         stopForeground(Service.STOP_FOREGROUND_REMOVE);
     }
 
@@ -47,40 +47,20 @@ public class NotificationListener extends NotificationListenerService {
             return;
         }
 
-        Notification notification = sbn.getNotification();
-
-        Bundle extras = notification.extras;
-        CharSequence title = extras.getCharSequence(Notification.EXTRA_TITLE);
-        CharSequence text = extras.getCharSequence(Notification.EXTRA_TEXT);
-
-        if (title == null && text == null) {
-            Logger.w(TAG, "No text in message");
-            return;
-        }
-
-        String titleText = title == null ? "" : title.toString();
-        String textText = text == null ? "" : text.toString();
-
-        String fullText = (titleText + "\n" + textText).trim();
-        if (fullText.isEmpty()) {
-            Logger.w(TAG, "No text in message");
-            return;
-        }
-
-        String appLabel = sbn.getPackageName();
-        long postTime = sbn.getPostTime();
-
-        String curTime = DateUtil.nowFormatted();
-        String postTimeString = DateUtil.formatDate(postTime);
-
-        serverApi.addMessage(new MessageContainer(
-                ServerApi.MESSAGE_TYPE_NOTIFICATION,
-                appLabel, curTime, postTimeString, fullText
-        ));
+        ingestor.add(sbn);
     }
 
+    /**
+     * Main thread: the filter never reads the storage here, before the settings are loaded it accepts everything.
+     * NotificationIngestor checks the source again on its thread.
+     */
     boolean isNotificationSuitable(@NonNull StatusBarNotification sbn) {
-        return sbn.isClearable();
+        if (!sbn.isClearable()) {
+            return false;
+        }
+
+        MessageFilter filter = AppSettings.getInstance().getMessageFilter();
+        return filter.acceptsSource(ServerApi.MESSAGE_TYPE_NOTIFICATION, sbn.getPackageName());
     }
 
     private void createServiceMessage() {
@@ -0,0 +1,211 @@
+package life.andre.sms487.services;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import life.andre.sms487.logging.Logger;
+import life.andre.sms487.messages.MessageContainer;
+import life.andre.sms487.network.ServerApi;
+
+/**
+ * Mutes packages that post more than the budget in a sliding window.
+ * While a package is muted its messages are only counted,
+ * and when the mute is over one summary message "N suppressed from X" goes in their place.
+ */
+public class PackageRateLimiter {
+    public static final String TAG = "PRL";
+    public static final int DEFAULT_BUDGET = 30;
+    public static final long DEFAULT_WINDOW = TimeUnit.MINUTES.toMillis(10);
+    public static final long DEFAULT_MUTE_TIME = TimeUnit.MINUTES.toMillis(15);
+    public static final int MAX_PACKAGES = 256;
+    public static final int STATS_TOP_SIZE = 5;
+
+    @NonNull
+    private final Consumer<MessageContainer> output;
+    @NonNull
+    private final Consumer<MessageContainer> onDropped;
+    private final int budget;
+    private final long windowMillis;
+    private final long muteMillis;
+
+    @NonNull
+    private final ScheduledExecutorService scheduler;
+    @NonNull
+    private final Map<String, Counter> counters = new LinkedHashMap<String, Counter>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Counter> eldest) {
+            // Muted counters are removed by their unmute task
+            return size() > MAX_PACKAGES && !eldest.getValue().isMuted;
+        }
+    };
+    @NonNull
+    private final Map<String, Long> suppressedTotals = new HashMap<>();
+    private long mutesCount = 0;
+
+    private static class Counter {
+        // Post times in the window, there are never more than the budget of them
+        @NonNull
+        final ArrayDeque<Long> times = new ArrayDeque<>();
+        boolean isMuted = false;
+        long mutedAt = 0;
+        int suppressed = 0;
+    }
+
+    /**
+     * @param onDropped gets suppressed messages, only their count is sent in the summary
+     */
+    public PackageRateLimiter(
+        @NonNull Consumer<MessageContainer> output,
+        @NonNull Consumer<MessageContainer> onDropped,
+        int budget,
+        long windowMillis,
+        long muteMillis
+    ) {
+        this.output = output;
+        this.onDropped = onDropped;
+        this.budget = budget;
+        this.windowMillis = windowMillis;
+        this.muteMillis = muteMillis;
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "PackageRateLimiter");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public void add(@NonNull MessageContainer msg) {
+        String packageName = msg.getAddressFrom();
+        if (packageName == null) {
+            output.accept(msg);
+            return;
+        }
+
+        long now = now();
+        boolean isSuppressed;
+        synchronized (this) {
+            Counter counter = counters.get(packageName);
+            if (counter == null) {
+                counter = new Counter();
+                counters.put(packageName, counter);
+            }
+
+            if (counter.isMuted) {
+                suppress(packageName, counter);
+                isSuppressed = true;
+            } else {
+                while (!counter.times.isEmpty() && now - counter.times.peekFirst() >= windowMillis) {
+                    counter.times.pollFirst();
+                }
+
+                if (counter.times.size() >= budget) {
+                    mute(packageName, counter, now);
+                    suppress(packageName, counter);
+                    isSuppressed = true;
+                } else {
+                    counter.times.addLast(now);
+                    isSuppressed = false;
+                }
+            }
+        }
+
+        if (isSuppressed) {
+            onDropped.accept(msg);
+            return;
+        }
+        output.accept(msg);
+    }
+
+    /**
+     * Packages that were throttled most, with the number of suppressed messages
+     */
+    @NonNull
+    public synchronized String getStats() {
+        List<Map.Entry<String, Long>> top = new ArrayList<>(suppressedTotals.entrySet());
+        top.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+
+        StringBuilder stats = new StringBuilder();
+        stats.append("mutes: ").append(mutesCount).append(", suppressed: [");
+        for (int i = 0; i < Math.min(top.size(), STATS_TOP_SIZE); ++i) {
+            if (i > 0) {
+                stats.append(", ");
+            }
+            stats.append(top.get(i).getKey()).append(": ").append(top.get(i).getValue());
+        }
+        return stats.append(']').toString();
+    }
+
+    /**
+     * Emits summaries of the packages that are muted now
+     */
+    public void shutdown() {
+        scheduler.shutdownNow();
+
+        List<String> muted = new ArrayList<>();
+        synchronized (this) {
+            for (Map.Entry<String, Counter> entry : counters.entrySet()) {
+                if (entry.getValue().isMuted) {
+                    muted.add(entry.getKey());
+                }
+            }
+        }
+
+        for (String packageName : muted) {
+            unmute(packageName);
+        }
+    }
+
+    private void mute(@NonNull String packageName, @NonNull Counter counter, long now) {
+        counter.isMuted = true;
+        counter.mutedAt = now;
+        counter.times.clear();
+        mutesCount++;
+
+        Logger.w(TAG, packageName + " posted " + budget + " messages in " + windowMillis / 1000 + " s, muted");
+        scheduler.schedule(() -> unmute(packageName), muteMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void suppress(@NonNull String packageName, @NonNull Counter counter) {
+        counter.suppressed++;
+        Long total = suppressedTotals.get(packageName);
+        suppressedTotals.put(packageName, total == null ? 1 : total + 1);
+    }
+
+    private void unmute(@NonNull String packageName) {
+        int suppressed;
+        long mutedFor;
+        synchronized (this) {
+            Counter counter = counters.remove(packageName);
+            if (counter == null || !counter.isMuted) {
+                return;
+            }
+            suppressed = counter.suppressed;
+            mutedFor = now() - counter.mutedAt;
+        }
+
+        Logger.i(TAG, packageName + " is unmuted, suppressed: " + suppressed);
+
+        long time = System.currentTimeMillis();
+        String body = suppressed + " suppressed from " + packageName + " in " + TimeUnit.MILLISECONDS.toMinutes(mutedFor) + " min";
+        try {
+            output.accept(new MessageContainer(ServerApi.MESSAGE_TYPE_NOTIFICATION, packageName, time, time, body));
+        } catch (Exception e) {
+            Logger.e(TAG, "Summary error: " + e);
+        }
+    }
+
+    // Monotonic, so windows don't jump with the wall clock
+    private static long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+}
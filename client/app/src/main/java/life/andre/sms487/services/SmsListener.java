@@ -13,6 +13,7 @@ import java.util.List;
 
 import life.andre.sms487.logging.Logger;
 import life.andre.sms487.messages.MessageContainer;
+import life.andre.sms487.messages.MessageFilter;
 import life.andre.sms487.messages.PduConverter;
 import life.andre.sms487.network.ServerApi;
 import life.andre.sms487.settings.AppSettings;
@@ -23,8 +24,14 @@ public class SmsListener extends BroadcastReceiver {
 
     @Override
     public void onReceive(@NonNull Context ctx, @NonNull Intent intent) {
+        // Keeps the process alive until messages are journaled
+        PendingResult pendingResult = goAsync();
         BgTask.run(() -> {
-            handleMessagesReceive(intent);
+            try {
+                handleMessagesReceive(intent);
+            } finally {
+                pendingResult.finish();
+            }
             return null;
         });
     }
@@ -41,11 +48,22 @@ public class SmsListener extends BroadcastReceiver {
         }
 
         ServerApi serverApi = ServerApi.getInstance();
+        MessageFilter filter = AppSettings.getInstance().getMessageFilter();
         for (MessageContainer message : messages) {
-            serverApi.addMessage(message);
+            if (isMessageSuitable(filter, message)) {
+                serverApi.addMessage(message);
+            }
         }
     }
 
+    private boolean isMessageSuitable(@NonNull MessageFilter filter, @NonNull MessageContainer message) {
+        String addressFrom = message.getAddressFrom();
+        if (addressFrom != null && !filter.acceptsSource(message.getMessageType(), addressFrom)) {
+            return false;
+        }
+        return filter.acceptsContent(null, message.getBody());
+    }
+
     @Nullable
     private List<MessageContainer> extractMessages(@NonNull Intent intent) {
         String action = intent.getAction();
@@ -1,32 +1,55 @@
 package life.andre.sms487.settings;
 
 import android.content.Context;
+import android.os.Looper;
+import android.util.Base64;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
+import org.greenrobot.eventbus.EventBus;
+
+import java.nio.charset.StandardCharsets;
 import java.util.Objects;
+import java.util.concurrent.atomic.AtomicReference;
 
+import life.andre.sms487.events.SettingsChanged;
+import life.andre.sms487.logging.Logger;
+import life.andre.sms487.messages.MessageFilter;
+import life.andre.sms487.utils.BgTask;
 import life.andre.sms487.views.Toaster;
 
 
 @SuppressWarnings("SameParameterValue")
 public class AppSettings {
+    public static final String TAG = "AST";
+
     public static final String SERVER_URL = "Server URL";
     public static final String AUTH_URL = "Auth URL";
     public static final String SERVER_USER = "Server user";
     public static final String SERVER_KEY = "Server key";
     public static final String NEED_SEND_SMS = "Send SMS to server";
+    public static final String FILTER_RULES = "Filter rules";
 
     private static final int TYPE_STRING = 0;
     private static final int TYPE_BOOL = 1;
 
+    // Served on the main thread until the settings are loaded: server is not configured, everything is accepted
+    private static final Snapshot EMPTY_SNAPSHOT = new Snapshot("", "", "", "", false, "");
+
     private static AppSettings instance;
 
     @NonNull
     private final AppSettingStorage storage;
+    @NonNull
+    private final AtomicReference<Snapshot> snapshot = new AtomicReference<>();
 
     public static void init(@NonNull Context ctx) {
         instance = new AppSettings(ctx);
+        BgTask.run(() -> {
+            instance.reloadSnapshot();
+            return null;
+        });
     }
 
     @NonNull
@@ -38,28 +61,59 @@ public class AppSettings {
         storage = new AppSettingStorage(ctx);
     }
 
+    /**
+     * Settings are read from the storage once and then served from memory.
+     * The snapshot is replaced as a whole on every save, SettingsChanged is posted on load and on every save.
+     * The main thread never reads the storage: before the load is finished it gets the empty snapshot.
+     */
+    @NonNull
+    public Snapshot getSnapshot() {
+        Snapshot current = snapshot.get();
+        if (current != null) {
+            return current;
+        }
+
+        if (Looper.getMainLooper().isCurrentThread()) {
+            Logger.w(TAG, "Settings are not loaded yet, use empty ones");
+            return EMPTY_SNAPSHOT;
+        }
+
+        snapshot.compareAndSet(null, loadSnapshot());
+        return Objects.requireNonNull(snapshot.get());
+    }
+
     @NonNull
     public String getAuthUrl() {
-        return getString(AUTH_URL);
+        return getSnapshot().authUrl;
     }
 
     @NonNull
     public String getServerUrl() {
-        return getString(SERVER_URL);
+        return getSnapshot().serverUrl;
     }
 
     @NonNull
     public String getServerUser() {
-        return getString(SERVER_USER);
+        return getSnapshot().serverUser;
     }
 
     @NonNull
     public String getServerKey() {
-        return getString(SERVER_KEY);
+        return getSnapshot().serverKey;
     }
 
     public boolean getNeedSendSms() {
-        return getBool(NEED_SEND_SMS);
+        return getSnapshot().needSendSms;
+    }
+
+    @NonNull
+    public String getFilterRules() {
+        return getSnapshot().filterRules;
+    }
+
+    @NonNull
+    public MessageFilter getMessageFilter() {
+        return getSnapshot().messageFilter;
     }
 
     public void saveServerUrl(@NonNull String serverUrl) {
@@ -78,6 +132,10 @@ public class AppSettings {
         saveValue(NEED_SEND_SMS, needSendSms);
     }
 
+    public void saveFilterRules(@NonNull String filterRules) {
+        saveValue(FILTER_RULES, filterRules);
+    }
+
     @NonNull
     private String getString(@NonNull String name) {
         String val = getSettingsItem(name).strVal;
@@ -91,14 +149,34 @@ public class AppSettings {
 
     private void saveValue(@NonNull String name, @NonNull String val) {
         String msg = saveSettingsItemToStorage(name, TYPE_STRING, val, false);
+        reloadSnapshot();
         Toaster.getInstance().show(msg);
     }
 
     private void saveValue(@NonNull String name, boolean val) {
         String msg = saveSettingsItemToStorage(name, TYPE_BOOL, "", val);
+        reloadSnapshot();
         Toaster.getInstance().show(msg);
     }
 
+    private synchronized void reloadSnapshot() {
+        Snapshot newSnapshot = loadSnapshot();
+        snapshot.set(newSnapshot);
+        EventBus.getDefault().post(new SettingsChanged(newSnapshot));
+    }
+
+    @NonNull
+    private Snapshot loadSnapshot() {
+        return new Snapshot(
+            getString(AUTH_URL),
+            getString(SERVER_URL),
+            getString(SERVER_USER),
+            getString(SERVER_KEY),
+            getBool(NEED_SEND_SMS),
+            getString(FILTER_RULES)
+        );
+    }
+
     @NonNull
     private AppSettingStorage.SettingsItem getSettingsItem(@NonNull String name) {
         return storage.get(name);
@@ -127,4 +205,59 @@ public class AppSettings {
         storage.set(name, val);
         return name + " is now " + val;
     }
+
+    public static class Snapshot {
+        @NonNull
+        public final String authUrl;
+        @NonNull
+        public final String serverUrl;
+        @NonNull
+        public final String serverUser;
+        @NonNull
+        public final String serverKey;
+        public final boolean needSendSms;
+        @NonNull
+        public final String filterRules;
+        // Compiled once per snapshot, so rules cost nothing per message
+        @NonNull
+        public final MessageFilter messageFilter;
+
+        @Nullable
+        private final String authHeader;
+
+        Snapshot(
+            @NonNull String authUrl,
+            @NonNull String serverUrl,
+            @NonNull String serverUser,
+            @NonNull String serverKey,
+            boolean needSendSms,
+            @NonNull String filterRules
+        ) {
+            this.authUrl = authUrl;
+            this.serverUrl = serverUrl;
+            this.serverUser = serverUser;
+            this.serverKey = serverKey;
+            this.needSendSms = needSendSms;
+            this.filterRules = filterRules;
+            this.messageFilter = filterRules.isEmpty() ? MessageFilter.ACCEPT_ALL : MessageFilter.compile(filterRules);
+            this.authHeader = isServerConfigured() ? createBasicAuthHeader(serverUser, serverKey) : null;
+        }
+
+        public boolean isServerConfigured() {
+            return !serverUrl.isEmpty() && !serverUser.isEmpty() && !serverKey.isEmpty();
+        }
+
+        @NonNull
+        public String getAuthHeader() {
+            return Objects.requireNonNull(authHeader, "Server is not configured");
+        }
+
+        @NonNull
+        private static String createBasicAuthHeader(@NonNull String user, @NonNull String key) {
+            String creds = user + ":" + key;
+            String b64 = Base64.encodeToString(creds.getBytes(StandardCharsets.UTF_8), Base64.NO_WRAP);
+
+            return "Basic " + b64;
+        }
+    }
 }
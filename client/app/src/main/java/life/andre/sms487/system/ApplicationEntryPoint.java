@@ -4,6 +4,7 @@ import android.app.Application;
 import android.content.Context;
 import android.content.Intent;
 import life.andre.sms487.logging.Logger;
+import life.andre.sms487.messages.CaptureJournal;
 import life.andre.sms487.messages.MessageCleanupWorker;
 import life.andre.sms487.messages.MessageResendWorker;
 import life.andre.sms487.messages.MessageStorage;
@@ -33,6 +34,7 @@ public class ApplicationEntryPoint extends Application {
 
         Toaster.init(ctx);
         AppSettings.init(ctx);
+        CaptureJournal.init(ctx);
         MessageStorage.init(ctx);
         ServerApi.init(ctx);
     }
@@ -0,0 +1,157 @@
+package life.andre.sms487.utils;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+import life.andre.sms487.logging.Logger;
+
+/**
+ * Many producers, one consumer on a dedicated thread.
+ * Values are flushed when the batch is full or when the delay after the first value is over.
+ * The delay follows the arrival rate: rare values are flushed almost at once, dense ones are coalesced.
+ * The queue is bounded, values that don't fit go to the overflow handler on the producer thread.
+ */
+public class BatchingQueue<ValType> {
+    public static final String TAG = "BTQ";
+
+    // How many arrivals at the current rate it is worth waiting for
+    private static final int WAIT_ARRIVALS = 8;
+    private static final double RATE_SMOOTHING = 0.2;
+
+    @NonNull
+    private final Queue<ValType> values = new ConcurrentLinkedQueue<>();
+    @NonNull
+    private final AtomicInteger size = new AtomicInteger();
+    @NonNull
+    private final AtomicLong lastArrival = new AtomicLong();
+    private volatile long avgIntervalNanos;
+
+    @NonNull
+    private final Consumer<List<ValType>> callback;
+    @NonNull
+    private final Consumer<ValType> overflowHandler;
+    private final int maxBatchSize;
+    private final int capacity;
+    private final long minDelayNanos;
+    private final long maxDelayNanos;
+
+    @NonNull
+    private final Thread consumerThread;
+    private volatile boolean running = true;
+
+    public BatchingQueue(
+        @NonNull String name,
+        @NonNull Consumer<List<ValType>> callback,
+        @NonNull Consumer<ValType> overflowHandler,
+        int maxBatchSize,
+        int capacity,
+        long minDelayMillis,
+        long maxDelayMillis
+    ) {
+        this.callback = callback;
+        this.overflowHandler = overflowHandler;
+        this.maxBatchSize = maxBatchSize;
+        this.capacity = capacity;
+        this.minDelayNanos = TimeUnit.MILLISECONDS.toNanos(minDelayMillis);
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+        this.avgIntervalNanos = maxDelayNanos;
+
+        consumerThread = new Thread(this::consumeLoop, name);
+        consumerThread.setDaemon(true);
+        consumerThread.start();
+    }
+
+    /**
+     * @return false when the queue is full and the value was passed to the overflow handler
+     */
+    public boolean handle(@NonNull ValType value) {
+        int newSize = size.incrementAndGet();
+        if (newSize > capacity) {
+            size.decrementAndGet();
+            overflowHandler.accept(value);
+            return false;
+        }
+
+        values.add(value);
+        trackArrival();
+
+        if (newSize == 1 || newSize >= maxBatchSize) {
+            LockSupport.unpark(consumerThread);
+        }
+        return true;
+    }
+
+    public int size() {
+        return size.get();
+    }
+
+    public void shutdown() {
+        running = false;
+        LockSupport.unpark(consumerThread);
+    }
+
+    private void trackArrival() {
+        long now = System.nanoTime();
+        long prev = lastArrival.getAndSet(now);
+        if (prev == 0) {
+            return;
+        }
+
+        long interval = Math.min(now - prev, maxDelayNanos * 2);
+        // Racy update from several producers is fine, it's an estimation
+        avgIntervalNanos += (long) (RATE_SMOOTHING * (interval - avgIntervalNanos));
+    }
+
+    private long getDelayNanos() {
+        long interval = avgIntervalNanos;
+        if (interval >= maxDelayNanos) {
+            return minDelayNanos;
+        }
+        return Math.max(minDelayNanos, Math.min(maxDelayNanos, interval * WAIT_ARRIVALS));
+    }
+
+    private void consumeLoop() {
+        while (running) {
+            if (size.get() == 0) {
+                LockSupport.park(this);
+                continue;
+            }
+
+            long deadline = System.nanoTime() + getDelayNanos();
+            long left;
+            while (running && size.get() < maxBatchSize && (left = deadline - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(this, left);
+            }
+
+            flush();
+        }
+        flush();
+    }
+
+    private void flush() {
+        List<ValType> batch = new ArrayList<>(Math.min(size.get(), maxBatchSize));
+        ValType value;
+        while (batch.size() < maxBatchSize && (value = values.poll()) != null) {
+            batch.add(value);
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+        size.addAndGet(-batch.size());
+
+        try {
+            callback.accept(batch);
+        } catch (Exception e) {
+            Logger.e(TAG, "Batch callback error: " + e);
+        }
+    }
+}
@@ -1,11 +1,14 @@
 package life.andre.sms487.utils;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
+import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Locale;
 import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
 
 public class DateUtil {
     @NonNull
@@ -14,6 +17,10 @@ public class DateUtil {
     @NonNull
     public static final Date ZERO_DATE = new Date(0);
 
+    static {
+        DATE_FORMAT.setTimeZone(TimeZone.getTimeZone("UTC"));
+    }
+
     @NonNull
     public static String nowFormatted() {
         return formatDate(new Date());
@@ -21,12 +28,36 @@ public class DateUtil {
 
     @NonNull
     public static String formatDate(@NonNull Date dt) {
-        DATE_FORMAT.setTimeZone(TimeZone.getTimeZone("UTC"));
-        return DATE_FORMAT.format(dt);
+        // SimpleDateFormat is not thread safe
+        synchronized (DATE_FORMAT) {
+            return DATE_FORMAT.format(dt);
+        }
     }
 
     @NonNull
     public static String formatDate(long ts) {
         return formatDate(new Date(ts));
     }
+
+    /**
+     * @return epoch millis or 0 when the string can't be parsed
+     */
+    public static long parseDate(@Nullable String dt) {
+        if (dt == null) {
+            return 0;
+        }
+        try {
+            synchronized (DATE_FORMAT) {
+                Date parsed = DATE_FORMAT.parse(dt);
+                return parsed != null ? parsed.getTime() : 0;
+            }
+        } catch (ParseException e) {
+            return 0;
+        }
+    }
+
+    public static long startOfDayUtc(long ts) {
+        long day = TimeUnit.DAYS.toMillis(1);
+        return ts - ts % day;
+    }
 }
@@ -12,17 +12,29 @@ import androidx.annotation.Nullable;
 import java.util.List;
 import java.util.Objects;
 
+import life.andre.sms487.utils.BatchingQueue;
 import life.andre.sms487.utils.StringUtil;
-import life.andre.sms487.utils.ValueThrottler;
 
 public class Toaster {
     public static final int MESSAGE_DELAY = 250;
+    public static final int MAX_MESSAGES = 16;
+    public static final int QUEUE_CAPACITY = 64;
 
     @SuppressLint("StaticFieldLeak")
     private static Toaster instance;
 
     @NonNull
-    private final ValueThrottler<String> throttler = new ValueThrottler<>(this::handleThrottled, MESSAGE_DELAY);
+    private final BatchingQueue<String> queue = new BatchingQueue<>(
+        "ToasterQueue",
+        this::handleThrottled,
+        (msg) -> {
+            // Nobody can read that many toasts anyway
+        },
+        MAX_MESSAGES,
+        QUEUE_CAPACITY,
+        MESSAGE_DELAY,
+        MESSAGE_DELAY
+    );
     @NonNull
     private final Handler handler = new Handler(Looper.getMainLooper());
     @NonNull
@@ -52,7 +64,7 @@ public class Toaster {
         if (msg == null) {
             return;
         }
-        throttler.handle(msg);
+        queue.handle(msg);
     }
 
     private void handleThrottled(@NonNull List<String> messages) {
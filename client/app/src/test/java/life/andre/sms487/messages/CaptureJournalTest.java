@@ -0,0 +1,247 @@
+package life.andre.sms487.messages;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class CaptureJournalTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void appendedMessagesAreRecovered() throws IOException {
+        File file = createFile();
+        List<MessageContainer> messages = TestMessages.create(3, 1);
+        appendAll(open(file), messages);
+
+        List<MessageContainer> recovered = open(file).takeRecovered();
+        assertEquals(messages.size(), recovered.size());
+        for (int i = 0; i < messages.size(); ++i) {
+            assertSameMessage(messages.get(i), recovered.get(i));
+            assertTrue(recovered.get(i).isJournaled());
+        }
+    }
+
+    @Test
+    public void recoveredAreTakenOnce() throws IOException {
+        File file = createFile();
+        appendAll(open(file), TestMessages.create(2, 2));
+
+        CaptureJournal journal = open(file);
+        assertEquals(2, journal.takeRecovered().size());
+        assertEquals(0, journal.takeRecovered().size());
+        assertEquals(2, journal.getOutstandingCount());
+    }
+
+    @Test
+    public void resolvedJournalIsReset() throws IOException {
+        File file = createFile();
+        CaptureJournal journal = open(file);
+        List<MessageContainer> messages = TestMessages.create(3, 3);
+        appendAll(journal, messages);
+
+        journal.resolve(getUids(messages.subList(0, 2)));
+        assertEquals(3, open(file).takeRecovered().size());
+
+        journal.resolve(messages.get(2));
+        assertEquals(0, journal.getOutstandingCount());
+        assertEquals(0, open(file).takeRecovered().size());
+    }
+
+    @Test
+    public void recoveredAreResolvedByUid() throws IOException {
+        File file = createFile();
+        appendAll(open(file), TestMessages.create(2, 4));
+
+        CaptureJournal journal = open(file);
+        List<MessageContainer> recovered = journal.takeRecovered();
+        journal.resolve(getUids(recovered));
+
+        assertEquals(0, open(file).takeRecovered().size());
+    }
+
+    @Test
+    public void replayStopsAtCorruptedRecord() throws IOException {
+        File file = createFile();
+        List<MessageContainer> messages = TestMessages.create(3, 5);
+        appendAll(open(file), messages);
+
+        // Flip a byte of the last record data, its CRC doesn't match anymore
+        long lastDataPosition = getRecordPosition(file, 2) + CaptureJournal.HEADER_SIZE + 1;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(lastDataPosition);
+            int val = raf.read();
+            raf.seek(lastDataPosition);
+            raf.write(val ^ 0xFF);
+        }
+
+        List<MessageContainer> recovered = open(file).takeRecovered();
+        assertEquals(2, recovered.size());
+        assertSameMessage(messages.get(1), recovered.get(1));
+    }
+
+    @Test
+    public void replayStopsAtTruncatedTail() throws IOException {
+        File file = createFile();
+        List<MessageContainer> messages = TestMessages.create(2, 6);
+        appendAll(open(file), messages);
+
+        // A record whose length was written, but the data runs past the end of the file
+        long tailPosition = getRecordPosition(file, 2);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(tailPosition);
+            raf.writeInt(CaptureJournal.SIZE);
+            raf.writeInt(0);
+        }
+
+        CaptureJournal journal = open(file);
+        assertEquals(2, journal.takeRecovered().size());
+
+        // New records go over the torn one
+        MessageContainer msg = TestMessages.create(1, 7).get(0);
+        assertTrue(journal.append(msg));
+        List<MessageContainer> recovered = open(file).takeRecovered();
+        assertEquals(3, recovered.size());
+        assertSameMessage(msg, recovered.get(2));
+    }
+
+    @Test
+    public void fullJournalIsCompacted() throws IOException {
+        File file = createFile();
+        CaptureJournal journal = open(file);
+
+        // Every message is resolved but the last one, so there is always one outstanding
+        MessageContainer prev = null;
+        for (int i = 0; i < 200; ++i) {
+            MessageContainer msg = createBigMessage(i);
+            assertTrue(journal.append(msg));
+            if (prev != null) {
+                journal.resolve(prev);
+            }
+            prev = msg;
+        }
+
+        assertFalse(new File(file.getPath() + CaptureJournal.TMP_FILE_SUFFIX).exists());
+        assertEquals(1, journal.getOutstandingCount());
+
+        // Resolved records after the last compaction are replayed too, Room ignores them by uid
+        List<MessageContainer> recovered = open(file).takeRecovered();
+        assertTrue(recovered.size() < 200);
+        assertSameMessage(prev, recovered.get(recovered.size() - 1));
+    }
+
+    @Test
+    public void compactionIsLeftToExecutor() throws IOException {
+        File file = createFile();
+        List<Runnable> tasks = new ArrayList<>();
+        CaptureJournal journal = new CaptureJournal(file, tasks::add);
+
+        MessageContainer prev = null;
+        int appended = 0;
+        while (tasks.isEmpty()) {
+            MessageContainer msg = createBigMessage(appended++);
+            assertTrue(journal.append(msg));
+            if (prev != null) {
+                journal.resolve(prev);
+            }
+            prev = msg;
+        }
+        assertEquals(appended, getRecoveredCount(file));
+
+        for (Runnable task : tasks) {
+            task.run();
+        }
+        assertEquals(1, getRecoveredCount(file));
+        assertTrue(journal.append(createBigMessage(appended)));
+        assertEquals(2, getRecoveredCount(file));
+    }
+
+    @Test
+    public void fullJournalOfOutstandingRefusesAppend() throws IOException {
+        File file = createFile();
+        CaptureJournal journal = open(file);
+
+        int appended = 0;
+        MessageContainer msg = createBigMessage(0);
+        while (journal.append(msg)) {
+            appended++;
+            msg = createBigMessage(appended);
+        }
+
+        assertFalse(msg.isJournaled());
+        assertEquals(appended, journal.getOutstandingCount());
+        assertEquals(appended, open(file).takeRecovered().size());
+    }
+
+    /**
+     * Reset and compaction run right in the calling thread
+     */
+    @NonNull
+    private static CaptureJournal open(@NonNull File file) {
+        return new CaptureJournal(file, Runnable::run);
+    }
+
+    private static int getRecoveredCount(@NonNull File file) {
+        return open(file).takeRecovered().size();
+    }
+
+    @NonNull
+    private File createFile() throws IOException {
+        return new File(folder.newFolder(), CaptureJournal.FILE_NAME);
+    }
+
+    private static void appendAll(@NonNull CaptureJournal journal, @NonNull List<MessageContainer> messages) {
+        for (MessageContainer msg : messages) {
+            assertTrue(journal.append(msg));
+        }
+    }
+
+    @NonNull
+    private static List<String> getUids(@NonNull List<MessageContainer> messages) {
+        List<String> uids = new ArrayList<>();
+        for (MessageContainer msg : messages) {
+            uids.add(msg.getUid());
+        }
+        return uids;
+    }
+
+    @NonNull
+    private static MessageContainer createBigMessage(int index) {
+        MessageContainer msg = TestMessages.create(1, index).get(0);
+        String body = index + ": " + String.join(" ", Collections.nCopies(2000, "text"));
+        return new MessageContainer(msg.getMessageType(), msg.getAddressFrom(), msg.getDateTime(), msg.getSmsCenterDateTime(), body);
+    }
+
+    private static long getRecordPosition(@NonNull File file, int index) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            long position = 0;
+            for (int i = 0; i < index; ++i) {
+                raf.seek(position);
+                position += CaptureJournal.HEADER_SIZE + raf.readInt();
+            }
+            return position;
+        }
+    }
+
+    private static void assertSameMessage(@NonNull MessageContainer expected, @NonNull MessageContainer actual) {
+        assertEquals(expected.getUid(), actual.getUid());
+        assertEquals(expected.getMessageType(), actual.getMessageType());
+        assertEquals(expected.getAddressFrom(), actual.getAddressFrom());
+        assertEquals(expected.getDateTime(), actual.getDateTime());
+        assertEquals(expected.getSmsCenterDateTime(), actual.getSmsCenterDateTime());
+        assertEquals(expected.getBody(), actual.getBody());
+    }
+}
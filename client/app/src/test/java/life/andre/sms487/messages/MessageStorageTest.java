@@ -0,0 +1,116 @@
+package life.andre.sms487.messages;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+import androidx.room.Room;
+import androidx.test.core.app.ApplicationProvider;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * One insert of the whole batch as addMessages does it against one insert per row as it was before.
+ * The database is a file, so commits cost what they cost on a device.
+ * Timing runs only with -Dsms487.benchmarks=true, they are not a part of the unit test run.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class MessageStorageTest {
+    private static final String DB_NAME = "messages-test";
+    private static final String BENCHMARKS_PROPERTY = "sms487.benchmarks";
+    private static final int BATCH_SIZE = 1000;
+    private static final int ROWS = 3000;
+    private static final int WARMUP_ROWS = 500;
+
+    private Context ctx;
+    private MessageStorage.MessageDatabase db;
+    private MessageStorage.MessageDao dao;
+
+    @Before
+    public void setUp() {
+        ctx = ApplicationProvider.getApplicationContext();
+        ctx.deleteDatabase(DB_NAME);
+        db = Room.databaseBuilder(ctx, MessageStorage.MessageDatabase.class, DB_NAME)
+            .allowMainThreadQueries()
+            .build();
+        dao = db.messageDao();
+    }
+
+    @After
+    public void tearDown() {
+        db.close();
+        ctx.deleteDatabase(DB_NAME);
+    }
+
+    @Test
+    public void bulkInsertSkipsDuplicatesLikeInsertPerRow() {
+        List<MessageStorage.Message> entries = createEntries(3, 1);
+        dao.insertAll(entries.subList(0, 1));
+
+        List<Long> bulkIds = dao.insertAll(entries);
+        assertEquals(3, bulkIds.size());
+        assertEquals(-1L, (long) bulkIds.get(0));
+        assertTrue(bulkIds.get(1) > 0 && bulkIds.get(2) > bulkIds.get(1));
+
+        for (MessageStorage.Message entry : entries) {
+            assertEquals(-1L, (long) dao.insertAll(Collections.singletonList(entry)).get(0));
+        }
+        assertEquals(3, dao.count());
+    }
+
+    @Test
+    public void bulkInsertIsFasterThanInsertPerRow() {
+        Assume.assumeTrue("Timing runs with -D" + BENCHMARKS_PROPERTY + "=true", Boolean.getBoolean(BENCHMARKS_PROPERTY));
+
+        insert(WARMUP_ROWS, BATCH_SIZE, true);
+        insert(WARMUP_ROWS, BATCH_SIZE, false);
+
+        long bulk = insert(ROWS, BATCH_SIZE, true);
+        long perRow = insert(ROWS, BATCH_SIZE, false);
+        assertTrue("Inserts per second, one insert: " + bulk + ", insert per row: " + perRow, bulk > perRow);
+    }
+
+    /**
+     * @return rows inserted per second
+     */
+    private long insert(int rows, int batchSize, boolean isBulk) {
+        List<List<MessageStorage.Message>> batches = new ArrayList<>();
+        for (int i = 0; i < rows; i += batchSize) {
+            batches.add(createEntries(Math.min(batchSize, rows - i), i));
+        }
+
+        long start = System.nanoTime();
+        for (List<MessageStorage.Message> batch : batches) {
+            if (isBulk) {
+                dao.insertAll(batch);
+                continue;
+            }
+            for (MessageStorage.Message entry : batch) {
+                dao.insertAll(Collections.singletonList(entry));
+            }
+        }
+        long elapsed = Math.max(1, System.nanoTime() - start);
+
+        return rows * 1_000_000_000L / elapsed;
+    }
+
+    @NonNull
+    private static List<MessageStorage.Message> createEntries(int count, long seed) {
+        List<MessageStorage.Message> entries = new ArrayList<>(count);
+        for (MessageContainer msg : TestMessages.create(count, seed)) {
+            entries.add(MessageStorage.Message.createFromMessageContainer(msg));
+        }
+        return entries;
+    }
+}
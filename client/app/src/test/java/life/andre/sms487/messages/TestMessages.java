@@ -0,0 +1,50 @@
+package life.andre.sms487.messages;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import life.andre.sms487.network.ServerApi;
+
+/**
+ * Deterministic corpus that looks like real traffic: a few chatty packages, repeated phrases and some SMS.
+ */
+public class TestMessages {
+    private static final String[] PACKAGES = {
+        "org.telegram.messenger",
+        "com.whatsapp",
+        "com.google.android.gm",
+        "ru.sberbankmobile",
+        "com.android.vending",
+    };
+    private static final String[] SENDERS = {"+79001234567", "900", "Tinkoff", "+15551230000"};
+    private static final String[] PHRASES = {
+        "New message from family chat",
+        "Ok, see you tomorrow",
+        "Your verification code is 4821. Do not share it with anyone",
+        "Payment of 1 250,00 RUB to Coffee Shop is approved",
+        "Downloading update: 42%",
+        "Привет! Как дела? Созвонимся вечером?",
+        "You have 3 new messages",
+    };
+
+    @NonNull
+    public static List<MessageContainer> create(int count, long seed) {
+        Random random = new Random(seed);
+        long time = 1700000000000L;
+
+        List<MessageContainer> messages = new ArrayList<>(count);
+        for (int i = 0; i < count; ++i) {
+            time += random.nextInt(60000);
+            boolean isSms = random.nextInt(5) == 0;
+            String type = isSms ? ServerApi.MESSAGE_TYPE_SMS : ServerApi.MESSAGE_TYPE_NOTIFICATION;
+            String from = isSms ? SENDERS[random.nextInt(SENDERS.length)] : PACKAGES[random.nextInt(PACKAGES.length)];
+            String body = PHRASES[random.nextInt(PHRASES.length)] + "\n" + PHRASES[random.nextInt(PHRASES.length)];
+
+            messages.add(new MessageContainer(type, from, time, time - random.nextInt(5000), body));
+        }
+        return messages;
+    }
+}
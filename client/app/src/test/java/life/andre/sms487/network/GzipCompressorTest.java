@@ -0,0 +1,84 @@
+package life.andre.sms487.network;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import life.andre.sms487.messages.MessageContainer;
+import life.andre.sms487.messages.TestMessages;
+
+public class GzipCompressorTest {
+    @Test
+    public void oldServerGetsPlainBody() throws IOException {
+        GzipCompressor compressor = new GzipCompressor();
+        assertFalse(compressor.isServerAcceptsGzip());
+        assertNull(compressor.compress(encode(42)));
+    }
+
+    @Test
+    public void smallBodyIsNotCompressed() {
+        GzipCompressor compressor = createAccepting();
+        assertNull(compressor.compress(new byte[GzipCompressor.MIN_SIZE_TO_COMPRESS - 1]));
+    }
+
+    @Test
+    public void disableTurnsCompressionOff() throws IOException {
+        GzipCompressor compressor = createAccepting();
+        compressor.disable();
+        assertNull(compressor.compress(encode(42)));
+    }
+
+    /**
+     * Wire bytes saved on the test corpus, the numbers are printed to the test output
+     */
+    @Test
+    public void wireBytesSaved() throws IOException {
+        GzipCompressor compressor = createAccepting();
+
+        for (int count : new int[]{5, 42, 200}) {
+            byte[] raw = encode(count);
+            byte[] compressed = compressor.compress(raw);
+            assertNotNull(compressed);
+            assertArrayEquals(raw, decompress(compressed));
+            assertTrue(compressed.length < raw.length);
+
+            long percent = (raw.length - compressed.length) * 100L / raw.length;
+            System.out.println("Batch of " + count + ": " + raw.length + " -> " + compressed.length + " bytes, saved " + percent + "%");
+        }
+    }
+
+    @NonNull
+    private static GzipCompressor createAccepting() {
+        GzipCompressor compressor = new GzipCompressor();
+        compressor.handleResponseHeaders(Collections.singletonMap("Accept-Encoding", "gzip"));
+        return compressor;
+    }
+
+    @NonNull
+    private static byte[] encode(int count) throws IOException {
+        MessageJsonEncoder encoder = new MessageJsonEncoder("Pixel 7");
+        List<MessageContainer> messages = TestMessages.create(count, count);
+        encoder.attachPayloads(messages);
+        return encoder.encode(messages);
+    }
+
+    @NonNull
+    private static byte[] decompress(@NonNull byte[] data) throws IOException {
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(data))) {
+            return in.readAllBytes();
+        }
+    }
+}
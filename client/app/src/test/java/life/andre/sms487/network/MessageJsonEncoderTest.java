@@ -0,0 +1,128 @@
+package life.andre.sms487.network;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import androidx.annotation.NonNull;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import life.andre.sms487.messages.MessageContainer;
+import life.andre.sms487.messages.TestMessages;
+import life.andre.sms487.utils.DateUtil;
+
+/**
+ * The streaming encoder writes the same JSON as org.json trees did before, and allocates less per /add-sms batch.
+ * Allocations are compared with each other only, absolute numbers depend on the JVM.
+ */
+public class MessageJsonEncoderTest {
+    private static final int BATCH_SIZE = 42;
+    private static final int WARMUP_ROUNDS = 200;
+    private static final int ROUNDS = 500;
+    private static final String DEVICE_ID = "Pixel 7";
+
+    @Test
+    public void encodedBatchIsSameJson() throws IOException, JSONException {
+        List<MessageContainer> batch = TestMessages.create(BATCH_SIZE, 1);
+        MessageJsonEncoder encoder = new MessageJsonEncoder(DEVICE_ID);
+        encoder.attachPayloads(batch);
+
+        JSONArray encoded = new JSONArray(new String(encoder.encode(batch), StandardCharsets.UTF_8));
+        JSONArray legacy = new JSONArray(new String(encodeWithJsonTree(batch), StandardCharsets.UTF_8));
+        assertEquals(legacy.length(), encoded.length());
+        for (int i = 0; i < legacy.length(); ++i) {
+            assertEquals(legacy.getJSONObject(i).toMap(), encoded.getJSONObject(i).toMap());
+        }
+    }
+
+    @Test
+    public void resendDoesNotEncodeAgain() throws IOException {
+        List<MessageContainer> batch = TestMessages.create(BATCH_SIZE, 2);
+        MessageJsonEncoder encoder = new MessageJsonEncoder(DEVICE_ID);
+        encoder.attachPayloads(batch);
+
+        assertArrayEquals(encoder.encode(batch), encoder.encode(batch));
+    }
+
+    @Test
+    public void encoderAllocatesLessThanJsonTree() throws IOException, JSONException {
+        Assume.assumeTrue("Needs HotSpot thread allocation counters", getThreadBean().isThreadAllocatedMemorySupported());
+
+        MessageJsonEncoder encoder = new MessageJsonEncoder(DEVICE_ID);
+
+        long jsonTree = measure(WARMUP_ROUNDS, ROUNDS, (batch) -> encodeWithJsonTree(batch));
+        long firstSend = measure(WARMUP_ROUNDS, ROUNDS, (batch) -> {
+            encoder.attachPayloads(batch);
+            encoder.encode(batch);
+        });
+
+        List<MessageContainer> stored = TestMessages.create(BATCH_SIZE, 3);
+        encoder.attachPayloads(stored);
+        long resend = measure(WARMUP_ROUNDS, ROUNDS, (batch) -> encoder.encode(stored));
+
+        assertTrue("First send allocates less than org.json tree: " + firstSend + " vs " + jsonTree, firstSend < jsonTree);
+        assertTrue("Resend allocates less than first send: " + resend + " vs " + firstSend, resend < firstSend);
+    }
+
+    /**
+     * How ServerApi encoded batches before the streaming encoder
+     */
+    @NonNull
+    private static byte[] encodeWithJsonTree(@NonNull List<MessageContainer> batch) throws JSONException {
+        JSONArray reqData = new JSONArray();
+        for (MessageContainer msg : batch) {
+            JSONObject item = new JSONObject();
+            item.put("id", msg.getUid())
+                .put("device_id", DEVICE_ID)
+                .put("message_type", msg.getMessageType())
+                .put("date_time", DateUtil.formatDate(msg.getDateTime()))
+                .put("sms_date_time", DateUtil.formatDate(msg.getSmsCenterDateTime()))
+                .put("tel", msg.getAddressFrom())
+                .put("text", msg.getBody());
+            reqData.put(item);
+        }
+        return reqData.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static long measure(int warmupRounds, int rounds, @NonNull BatchAction action) throws IOException, JSONException {
+        // Messages are created outside of the measured part, they are the same for every encoder
+        List<List<MessageContainer>> batches = new ArrayList<>();
+        for (int i = 0; i < warmupRounds + rounds; ++i) {
+            batches.add(TestMessages.create(BATCH_SIZE, i));
+        }
+
+        for (int i = 0; i < warmupRounds; ++i) {
+            action.run(batches.get(i));
+        }
+
+        long before = getAllocatedBytes();
+        for (int i = warmupRounds; i < warmupRounds + rounds; ++i) {
+            action.run(batches.get(i));
+        }
+        return (getAllocatedBytes() - before) / rounds;
+    }
+
+    private static long getAllocatedBytes() {
+        return getThreadBean().getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    @NonNull
+    private static com.sun.management.ThreadMXBean getThreadBean() {
+        return (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    }
+
+    private interface BatchAction {
+        void run(@NonNull List<MessageContainer> batch) throws IOException, JSONException;
+    }
+}
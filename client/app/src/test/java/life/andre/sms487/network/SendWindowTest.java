@@ -0,0 +1,73 @@
+package life.andre.sms487.network;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class SendWindowTest {
+    @Test
+    public void fullQueueRefusesTask() {
+        SendWindow window = new SendWindow(1, 2);
+        AtomicReference<Runnable> held = new AtomicReference<>();
+
+        assertTrue(window.submit(held::set));
+        assertTrue(window.submit(Runnable::run));
+        assertTrue(window.submit(Runnable::run));
+        assertFalse(window.submit(Runnable::run));
+        assertEquals(2, window.getPending());
+
+        held.get().run();
+        assertEquals(0, window.getPending());
+        assertEquals(0, window.getInFlight());
+    }
+
+    @Test
+    public void synchronousReleasesDoNotNest() {
+        int count = 100000;
+        SendWindow window = new SendWindow(1, count);
+        AtomicReference<Runnable> held = new AtomicReference<>();
+        AtomicInteger started = new AtomicInteger();
+
+        window.submit(held::set);
+        for (int i = 0; i < count; ++i) {
+            window.submit((release) -> {
+                started.incrementAndGet();
+                release.run();
+            });
+        }
+
+        // Every pending task releases its slot right away, as when the server is not configured
+        held.get().run();
+        assertEquals(count, started.get());
+        assertEquals(0, window.getInFlight());
+    }
+
+    @Test
+    public void failedTaskReleasesSlot() {
+        SendWindow window = new SendWindow(1, 1);
+        window.submit((release) -> {
+            throw new IllegalStateException("Encoder failed");
+        });
+
+        assertEquals(0, window.getInFlight());
+        AtomicInteger started = new AtomicInteger();
+        assertTrue(window.submit((release) -> started.incrementAndGet()));
+        assertEquals(1, started.get());
+    }
+
+    @Test
+    public void releaseIsCountedOnce() {
+        SendWindow window = new SendWindow(2, 1);
+        window.submit((release) -> {
+            release.run();
+            release.run();
+        });
+
+        assertEquals(0, window.getInFlight());
+    }
+}
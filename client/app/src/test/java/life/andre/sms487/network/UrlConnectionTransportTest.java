@@ -0,0 +1,185 @@
+package life.andre.sms487.network;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import androidx.annotation.NonNull;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import life.andre.sms487.utils.ValueOrError;
+
+/**
+ * Runs the transport against a local stand-in server
+ */
+public class UrlConnectionTransportTest {
+    private static final long WAIT_SECONDS = 10;
+
+    private HttpServer server;
+    private UrlConnectionTransport transport;
+    private String baseUrl;
+
+    private final List<Exchange> exchanges = Collections.synchronizedList(new ArrayList<>());
+    private volatile int responseStatus = 200;
+
+    private static class Exchange {
+        final byte[] body;
+        final String contentType;
+        final String transferEncoding;
+        final int remotePort;
+
+        Exchange(@NonNull HttpExchange exchange, @NonNull byte[] body) {
+            this.body = body;
+            this.contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+            this.transferEncoding = exchange.getRequestHeaders().getFirst("Transfer-Encoding");
+            this.remotePort = exchange.getRemoteAddress().getPort();
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/add-sms", this::handle);
+        server.start();
+
+        baseUrl = "http://127.0.0.1:" + server.getAddress().getPort();
+        transport = new UrlConnectionTransport(2, 5000);
+    }
+
+    @After
+    public void tearDown() {
+        transport.shutdown();
+        server.stop(0);
+    }
+
+    @Test
+    public void postsFixedLengthBody() throws Exception {
+        byte[] body = "[{\"id\":\"1\"}]".getBytes(StandardCharsets.UTF_8);
+        HttpResponse response = post(new HttpRequest(baseUrl + "/add-sms", "application/json", Collections.emptyMap(), body)).getValueNonNull();
+
+        assertEquals(200, response.getStatusCode());
+        assertEquals("ok", response.getBodyAsString());
+        assertEquals("gzip", response.getHeader("accept-encoding"));
+
+        Exchange exchange = exchanges.get(0);
+        assertArrayEquals(body, exchange.body);
+        assertEquals("application/json", exchange.contentType);
+        assertNull(exchange.transferEncoding);
+    }
+
+    @Test
+    public void streamsBodyOfUnknownLength() throws Exception {
+        HttpRequest request = new HttpRequest(baseUrl + "/add-sms", "application/x-ndjson", Collections.emptyMap(), (out) -> {
+            for (int i = 0; i < 1000; ++i) {
+                out.write(("{\"id\":\"" + i + "\"}\n").getBytes(StandardCharsets.UTF_8));
+            }
+        });
+        assertEquals(200, post(request).getValueNonNull().getStatusCode());
+
+        Exchange exchange = exchanges.get(0);
+        assertEquals("chunked", exchange.transferEncoding);
+        assertEquals(1000, new String(exchange.body, StandardCharsets.UTF_8).split("\n").length);
+    }
+
+    @Test
+    public void errorStatusIsResponse() throws Exception {
+        responseStatus = 503;
+        HttpResponse response = post(createRequest()).getValueNonNull();
+
+        assertEquals(503, response.getStatusCode());
+        assertEquals("ok", response.getBodyAsString());
+    }
+
+    @Test
+    public void connectionsAreReused() throws Exception {
+        post(createRequest());
+        post(createRequest());
+
+        assertEquals(2, exchanges.size());
+        assertEquals(exchanges.get(0).remotePort, exchanges.get(1).remotePort);
+    }
+
+    @Test
+    public void refusedConnectionIsError() throws Exception {
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        HttpRequest request = new HttpRequest("http://127.0.0.1:" + port + "/add-sms", "application/json", Collections.emptyMap(), new byte[1]);
+
+        ValueOrError<HttpResponse, IOException> result = post(request);
+        assertNull(result.getValue());
+        assertNotNull(result.getError());
+    }
+
+    @Test
+    public void runtimeErrorInBodyWriterIsError() throws Exception {
+        HttpRequest request = new HttpRequest(baseUrl + "/add-sms", "application/x-ndjson", Collections.emptyMap(), (out) -> {
+            throw new IllegalStateException("Cursor is closed");
+        });
+
+        ValueOrError<HttpResponse, IOException> result = post(request);
+        assertNull(result.getValue());
+        assertTrue(String.valueOf(result.getError()).contains("Cursor is closed"));
+    }
+
+    @Test
+    public void notHttpUrlIsError() throws Exception {
+        HttpRequest request = new HttpRequest("file:///tmp/add-sms", "application/json", Collections.emptyMap(), new byte[1]);
+        assertNotNull(post(request).getError());
+    }
+
+    @Test
+    public void postAfterShutdownIsError() throws Exception {
+        transport.shutdown();
+        assertNotNull(post(createRequest()).getError());
+    }
+
+    @NonNull
+    private HttpRequest createRequest() {
+        return new HttpRequest(baseUrl + "/add-sms", "application/json", Map.of("Authorization", "Basic dTpr"), new byte[]{'[', ']'});
+    }
+
+    @NonNull
+    private ValueOrError<HttpResponse, IOException> post(@NonNull HttpRequest request) throws Exception {
+        CompletableFuture<ValueOrError<HttpResponse, IOException>> result = new CompletableFuture<>();
+        transport.post(request, result::complete);
+        return result.get(WAIT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    private void handle(@NonNull HttpExchange exchange) throws IOException {
+        byte[] body;
+        try (InputStream in = exchange.getRequestBody()) {
+            body = in.readAllBytes();
+        }
+        exchanges.add(new Exchange(exchange, body));
+
+        byte[] response = "ok".getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Accept-Encoding", "gzip");
+        exchange.sendResponseHeaders(responseStatus, response.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(response);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package life.andre.sms487.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import life.andre.sms487.messages.MessageContainer;
+import life.andre.sms487.network.ServerApi;
+
+public class NotificationCoalescerTest {
+    private static final String KEY = "0|org.telegram.messenger|1|null|10001";
+
+    private final List<MessageContainer> emitted = new CopyOnWriteArrayList<>();
+    private final List<MessageContainer> dropped = new CopyOnWriteArrayList<>();
+
+    @Test
+    public void sameTextIsSkipped() {
+        NotificationCoalescer coalescer = new NotificationCoalescer(emitted::add, dropped::add, 0);
+        coalescer.add(KEY, createMessage("Downloading update: 42%"));
+        coalescer.add(KEY, createMessage("Downloading update: 42%"));
+
+        assertEquals(1, emitted.size());
+        assertEquals(1, dropped.size());
+        assertEquals(1, coalescer.getCoalescedCount());
+    }
+
+    @Test
+    public void sameHashIsNotSameText() {
+        // "Aa" and "BB" have the same String.hashCode()
+        NotificationCoalescer coalescer = new NotificationCoalescer(emitted::add, dropped::add, 0);
+        coalescer.add(KEY, createMessage("Aa"));
+        coalescer.add(KEY, createMessage("BB"));
+
+        assertEquals(2, emitted.size());
+        assertEquals(0, dropped.size());
+    }
+
+    @Test
+    public void repostsInWindowAreCollapsed() throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(1);
+        NotificationCoalescer coalescer = new NotificationCoalescer((msg) -> {
+            emitted.add(msg);
+            done.countDown();
+        }, dropped::add, 50);
+
+        MessageContainer last = createMessage("3 new messages");
+        coalescer.add(KEY, createMessage("1 new message"));
+        coalescer.add(KEY, createMessage("2 new messages"));
+        coalescer.add(KEY, last);
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(Collections.singletonList(last), emitted);
+        assertEquals(2, dropped.size());
+    }
+
+    @Test
+    public void shutdownEmitsPendingAndPassesLaterMessages() {
+        NotificationCoalescer coalescer = new NotificationCoalescer(emitted::add, dropped::add, TimeUnit.MINUTES.toMillis(1));
+        MessageContainer pending = createMessage("Ok, see you tomorrow");
+        coalescer.add(KEY, pending);
+        assertEquals(0, emitted.size());
+
+        coalescer.shutdown();
+        assertEquals(1, emitted.size());
+        assertSame(pending, emitted.get(0));
+
+        coalescer.add(KEY, createMessage("New message from family chat"));
+        assertEquals(2, emitted.size());
+    }
+
+    @NonNull
+    private static MessageContainer createMessage(@NonNull String body) {
+        long time = System.currentTimeMillis();
+        return new MessageContainer(ServerApi.MESSAGE_TYPE_NOTIFICATION, "org.telegram.messenger", time, time, body);
+    }
+}
@@ -1,4 +1,7 @@
+import gzip
+import json
 import sys
+import uuid
 from datetime import datetime
 from pprint import pprint
 
@@ -15,6 +18,9 @@ import requests
 @click.option('--date-time', default=datetime.now().strftime('%Y-%m-%dT%H:%M:%S'))
 @click.option('--tel', default='000')
 @click.option('--text', default='Hello world!')
+@click.option('--corpus', type=click.File('r'), help='JSON array of request items to send instead of one message')
+@click.option('--gzip', 'use_gzip', is_flag=True, help='Send body with Content-Encoding: gzip')
+@click.option('--stream', is_flag=True, help='Send items as NDJSON to the streaming endpoint')
 def main(
     addr: str,
     user: str,
@@ -24,19 +30,43 @@ def main(
     date_time: str,
     tel: str,
     text: str,
+    corpus,
+    use_gzip: bool,
+    stream: bool,
 ):
-    resp = requests.post(
-        addr + '/add-sms',
-        auth=(user, password),
-        json=[
+    if corpus:
+        items = json.load(corpus)
+    else:
+        items = [
             {
+                'id': str(uuid.uuid4()),
                 'device_id': device_id,
                 'message_type': message_type,
                 'date_time': date_time,
                 'tel': tel,
                 'text': text,
             }
-        ],
+        ]
+
+    if stream:
+        path = '/add-sms-stream'
+        body = ''.join(json.dumps(item, ensure_ascii=False) + '\n' for item in items).encode('utf-8')
+        headers = {'Content-Type': 'application/x-ndjson; charset=utf-8'}
+    else:
+        path = '/add-sms'
+        body = json.dumps(items, ensure_ascii=False).encode('utf-8')
+        headers = {'Content-Type': 'application/json; charset=utf-8'}
+    if use_gzip:
+        raw_size = len(body)
+        body = gzip.compress(body)
+        headers['Content-Encoding'] = 'gzip'
+        print(f'Body: {raw_size} -> {len(body)} bytes ({100 - len(body) * 100 // raw_size}% saved)', file=sys.stderr)
+
+    resp = requests.post(
+        addr + path,
+        auth=(user, password),
+        data=body,
+        headers=headers,
     )
     resp.raise_for_status()
 
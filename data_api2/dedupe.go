@@ -0,0 +1,118 @@
+package main
+
+import (
+	"sync"
+	"time"
+)
+
+type DedupeStatus int
+
+const (
+	DedupeNew DedupeStatus = iota
+	DedupeDuplicate
+	DedupeInProgress
+)
+
+type dedupeEntry struct {
+	done bool
+	at   time.Time
+	// Index in order, -1 when the slot was reused while the entry was in progress
+	slot int
+}
+
+// DedupeWindow remembers IDs of recently queued items, so client retries become no-ops.
+// It's bounded by size: the oldest IDs are evicted first. Entries older than ttl are ignored.
+// An entry that is in progress when its slot is reused is evicted on Commit or Release.
+type DedupeWindow struct {
+	mu      sync.Mutex
+	ttl     time.Duration
+	entries map[string]dedupeEntry
+	order   []string
+	next    int
+}
+
+func NewDedupeWindow(size int, ttl time.Duration) *DedupeWindow {
+	if size < 1 {
+		size = 1
+	}
+	return &DedupeWindow{
+		ttl:     ttl,
+		entries: make(map[string]dedupeEntry, size),
+		order:   make([]string, size),
+	}
+}
+
+// Claim reserves the ID for the current request. It must be followed by Commit or Release.
+func (d *DedupeWindow) Claim(id string) DedupeStatus {
+	d.mu.Lock()
+	defer d.mu.Unlock()
+
+	now := time.Now()
+	e, ok := d.entries[id]
+	if ok {
+		if !e.done {
+			return DedupeInProgress
+		}
+		if now.Sub(e.at) < d.ttl {
+			return DedupeDuplicate
+		}
+	} else {
+		e.slot = d.push(id)
+	}
+
+	d.entries[id] = dedupeEntry{done: false, at: now, slot: e.slot}
+	return DedupeNew
+}
+
+// Commit marks claimed IDs as queued.
+func (d *DedupeWindow) Commit(ids []string) {
+	d.mu.Lock()
+	defer d.mu.Unlock()
+
+	now := time.Now()
+	for _, id := range ids {
+		e, ok := d.entries[id]
+		if !ok {
+			continue
+		}
+		if e.slot < 0 {
+			delete(d.entries, id)
+			continue
+		}
+		d.entries[id] = dedupeEntry{done: true, at: now, slot: e.slot}
+	}
+}
+
+// Release forgets claimed IDs after a failure, so the retry will be accepted.
+func (d *DedupeWindow) Release(ids []string) {
+	d.mu.Lock()
+	defer d.mu.Unlock()
+
+	for _, id := range ids {
+		if e, ok := d.entries[id]; ok && !e.done {
+			delete(d.entries, id)
+			if e.slot >= 0 {
+				d.order[e.slot] = ""
+			}
+		}
+	}
+}
+
+// push takes the next slot for the ID and returns its index.
+func (d *DedupeWindow) push(id string) int {
+	slot := d.next
+	if old := d.order[slot]; old != "" {
+		if e, ok := d.entries[old]; ok {
+			if e.done {
+				delete(d.entries, old)
+			} else {
+				// The claiming request still holds it, it's evicted when that request ends
+				e.slot = -1
+				d.entries[old] = e
+			}
+		}
+	}
+	d.order[slot] = id
+	d.next = (slot + 1) % len(d.order)
+	return slot
+}
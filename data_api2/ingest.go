@@ -0,0 +1,266 @@
+package main
+
+import (
+	"context"
+	"encoding/json"
+	"fmt"
+	"log/slog"
+	"time"
+
+	"github.com/aws/aws-sdk-go-v2/aws"
+	"github.com/aws/aws-sdk-go-v2/service/sqs"
+)
+
+// SQS limit is 256 KiB per message, keep some room for the envelope.
+const maxSqsMessageSize = 200 * 1024
+
+// Rejected items can never be queued, the client must not send them again.
+type AddResult struct {
+	Status     string   `json:"status"`
+	Added      int      `json:"added"`
+	Duplicates int      `json:"duplicates"`
+	Acks       []string `json:"acks"`
+	Rejected   []string `json:"rejected"`
+}
+
+// StreamResult lists only items that are not queued, every other line of the stream is taken.
+// The client compares Lines with what it has written to tell a complete stream from a cut one.
+type StreamResult struct {
+	Status     string   `json:"status"`
+	Added      int      `json:"added"`
+	Duplicates int      `json:"duplicates"`
+	Lines      int      `json:"lines"`
+	Broken     int      `json:"broken"`
+	Retry      []string `json:"retry"`
+	Rejected   []string `json:"rejected"`
+}
+
+type Ingester struct {
+	sqsCtx    context.Context
+	sqsClient *sqs.Client
+	queueURL  string
+	timeZone  *time.Location
+	dedupe    *DedupeWindow
+	logger    *slog.Logger
+}
+
+// Item data is nil for items that are acknowledged without queueing.
+type ingestItem struct {
+	id   string
+	data *SqsMessageData
+}
+
+// IngestBatch queues request items to SQS in chunks that fit SQS message size
+// and tracks which item IDs were queued, so they can be acknowledged one by one.
+type IngestBatch struct {
+	in         *Ingester
+	items      []ingestItem
+	size       int
+	batchIds   map[string]bool
+	hasNoIds   bool
+	keepAcks   bool
+	failed     int
+	added      int
+	duplicates int
+	acked      int
+	acks       []string
+	retry      []string
+	rejected   []string
+}
+
+func NewIngester(sqsCtx context.Context, sqsClient *sqs.Client, queueURL string, timeZone *time.Location, dedupe *DedupeWindow, logger *slog.Logger) *Ingester {
+	return &Ingester{
+		sqsCtx:    sqsCtx,
+		sqsClient: sqsClient,
+		queueURL:  queueURL,
+		timeZone:  timeZone,
+		dedupe:    dedupe,
+		logger:    logger,
+	}
+}
+
+func (in *Ingester) NewBatch() *IngestBatch {
+	return &IngestBatch{
+		in:       in,
+		batchIds: make(map[string]bool),
+		keepAcks: true,
+		acks:     []string{},
+		retry:    []string{},
+		rejected: []string{},
+	}
+}
+
+// NewStreamBatch doesn't keep acknowledged IDs: a stream can be as long as the whole backlog,
+// so only items that are not queued are reported.
+func (in *Ingester) NewStreamBatch() *IngestBatch {
+	b := in.NewBatch()
+	b.keepAcks = false
+	return b
+}
+
+func (b *IngestBatch) Add(item RequestItem) {
+	logger := b.in.logger
+	logger.Info(
+		"incoming_message",
+		"id", item.Id,
+		"type", item.MessageType,
+		"device_id", item.DeviceId,
+		"tel", item.Tel,
+		"date_time", item.DateTime,
+		"sms_date_time", item.SmsDateTime,
+		"text_length", len(item.Text),
+	)
+
+	if item.Id == "" {
+		b.hasNoIds = true
+	} else {
+		if b.batchIds[item.Id] {
+			b.duplicates++
+			return
+		}
+		b.batchIds[item.Id] = true
+
+		switch b.in.dedupe.Claim(item.Id) {
+		case DedupeInProgress:
+			// Queued by a concurrent request right now, the client will retry it if that one fails
+			b.retry = append(b.retry, item.Id)
+			return
+		case DedupeDuplicate:
+			logger.Info("duplicate_message", "id", item.Id)
+			b.duplicates++
+			b.ack(item.Id)
+			return
+		}
+	}
+
+	if item.Tel == "org.telegram.messenger" {
+		b.items = append(b.items, ingestItem{id: item.Id})
+		return
+	}
+
+	data := CreateSqsMessageData(item, b.in.timeZone, logger)
+	encoded, err := json.Marshal(data)
+	if err != nil {
+		logger.Error(fmt.Sprintf("Error marshaling sqs message data: %s", err))
+		b.in.dedupe.Release([]string{item.Id})
+		b.failed++
+		if item.Id != "" {
+			b.retry = append(b.retry, item.Id)
+		}
+		return
+	}
+
+	if len(encoded) > maxSqsMessageSize {
+		// Doesn't fit into an SQS message even alone, retrying it makes no sense
+		logger.Warn("rejected_message", "id", item.Id, "size", len(encoded))
+		b.in.dedupe.Release([]string{item.Id})
+		if item.Id != "" {
+			b.rejected = append(b.rejected, item.Id)
+		}
+		return
+	}
+
+	if b.size+len(encoded) > maxSqsMessageSize && len(b.items) > 0 {
+		b.Flush()
+	}
+	b.items = append(b.items, ingestItem{id: item.Id, data: &data})
+	b.size += len(encoded) + 1
+}
+
+// Flush sends accumulated items as one SQS message.
+func (b *IngestBatch) Flush() {
+	if len(b.items) == 0 {
+		return
+	}
+
+	items := b.items
+	b.items = nil
+	b.size = 0
+
+	var ids []string
+	var sqsMsg SqsMessage
+	sqsMsg.Type = "new_messages"
+	for _, item := range items {
+		if item.id != "" {
+			ids = append(ids, item.id)
+		}
+		if item.data != nil {
+			sqsMsg.Data = append(sqsMsg.Data, *item.data)
+		}
+	}
+
+	if len(sqsMsg.Data) > 0 {
+		if err := b.sendSqsMessage(sqsMsg); err != nil {
+			b.in.logger.Error(fmt.Sprintf("Error sending sqs message: %s", err))
+			b.in.dedupe.Release(ids)
+			b.failed += len(items)
+			b.retry = append(b.retry, ids...)
+			return
+		}
+	}
+
+	b.in.dedupe.Commit(ids)
+	b.added += len(sqsMsg.Data)
+	b.ack(ids...)
+}
+
+func (b *IngestBatch) ack(ids ...string) {
+	b.acked += len(ids)
+	if b.keepAcks {
+		b.acks = append(b.acks, ids...)
+	}
+}
+
+func (b *IngestBatch) sendSqsMessage(sqsMsg SqsMessage) error {
+	body, err := json.Marshal(sqsMsg)
+	if err != nil {
+		return err
+	}
+
+	out, err := b.in.sqsClient.SendMessage(b.in.sqsCtx, &sqs.SendMessageInput{
+		QueueUrl:       aws.String(b.in.queueURL),
+		MessageBody:    aws.String(string(body)),
+		MessageGroupId: aws.String("1"),
+	})
+	if err != nil {
+		return err
+	}
+
+	b.in.logger.Info(fmt.Sprintf("SQS message sent: %s", *out.MessageId))
+	return nil
+}
+
+// Failed says that the request must fail as a whole: nothing was acknowledged,
+// or there are items without IDs that can't be acknowledged separately.
+func (b *IngestBatch) Failed() bool {
+	return b.failed > 0 && (b.acked == 0 || b.hasNoIds)
+}
+
+func (b *IngestBatch) status() string {
+	if b.failed > 0 || len(b.rejected) > 0 {
+		return "PARTIAL"
+	}
+	return "OK"
+}
+
+func (b *IngestBatch) Result() AddResult {
+	return AddResult{
+		Status:     b.status(),
+		Added:      b.added,
+		Duplicates: b.duplicates,
+		Acks:       b.acks,
+		Rejected:   b.rejected,
+	}
+}
+
+func (b *IngestBatch) StreamResult(lines int, broken int) StreamResult {
+	return StreamResult{
+		Status:     b.status(),
+		Added:      b.added,
+		Duplicates: b.duplicates,
+		Lines:      lines,
+		Broken:     broken,
+		Retry:      b.retry,
+		Rejected:   b.rejected,
+	}
+}
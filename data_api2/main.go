@@ -1,15 +1,21 @@
 package main
 
 import (
+	"bufio"
+	"bytes"
+	"compress/gzip"
 	"context"
 	"crypto/subtle"
 	"encoding/base64"
 	"encoding/json"
+	"errors"
 	"fmt"
+	"io"
 	"log"
 	"log/slog"
 	"net/http"
 	"os"
+	"strconv"
 	"strings"
 	"time"
 
@@ -22,6 +28,11 @@ import (
 
 type ctxKey string
 
+// Limit for request bodies after decoding, so a tiny gzip bomb or an endless stream can't eat the memory.
+const maxDecodedBodySize = 32 << 20
+
+var ErrUnsupportedEncoding = errors.New("unsupported Content-Encoding")
+
 const requestIDKey ctxKey = "request_id"
 
 func WithRequestID(next http.Handler) http.Handler {
@@ -103,12 +114,104 @@ func BasicAuth(user, pass string, logger *slog.Logger, next http.Handler) http.H
 	})
 }
 
+// DecodedBody returns request body reader according to Content-Encoding.
+// The server announces supported encodings with Accept-Encoding response header,
+// and clients compress bodies only after they have seen it.
+func DecodedBody(r *http.Request) (io.ReadCloser, error) {
+	enc := strings.ToLower(strings.TrimSpace(r.Header.Get("Content-Encoding")))
+	switch enc {
+	case "", "identity":
+		return struct {
+			io.Reader
+			io.Closer
+		}{io.LimitReader(r.Body, maxDecodedBodySize), r.Body}, nil
+	case "gzip":
+		gz, err := gzip.NewReader(r.Body)
+		if err != nil {
+			return nil, err
+		}
+		return struct {
+			io.Reader
+			io.Closer
+		}{io.LimitReader(gz, maxDecodedBodySize), gz}, nil
+	}
+	return nil, fmt.Errorf("%w: %s", ErrUnsupportedEncoding, enc)
+}
+
+// OpenRequestBody checks method and content type of a POST request and returns its decoded body.
+// When it's not ok, the error response is already written.
+func OpenRequestBody(w http.ResponseWriter, r *http.Request, contentType string, logger *slog.Logger) (io.ReadCloser, bool) {
+	if r.Method != http.MethodPost {
+		http.Error(w, "method not allowed", http.StatusMethodNotAllowed)
+		return nil, false
+	}
+
+	if ct := r.Header.Get("Content-Type"); !strings.HasPrefix(ct, contentType) {
+		http.Error(w, "Content-Type not supported", http.StatusUnsupportedMediaType)
+		return nil, false
+	}
+
+	body, err := DecodedBody(r)
+	if errors.Is(err, ErrUnsupportedEncoding) {
+		http.Error(w, err.Error(), http.StatusUnsupportedMediaType)
+		return nil, false
+	}
+	if err != nil {
+		http.Error(w, "Bad body encoding: "+err.Error(), http.StatusBadRequest)
+		return nil, false
+	}
+	return body, true
+}
+
+// JsonErrorStatus tells bad data from a body that was not read to the end.
+// 422 means the messages themselves are bad and the client stops retrying them,
+// read errors like a broken gzip stream or a cut connection are 400 and are retried.
+func JsonErrorStatus(err error) int {
+	var syntaxErr *json.SyntaxError
+	var typeErr *json.UnmarshalTypeError
+	if errors.As(err, &syntaxErr) || errors.As(err, &typeErr) {
+		return http.StatusUnprocessableEntity
+	}
+	return http.StatusBadRequest
+}
+
+func CloseRequestBody(r *http.Request, body io.ReadCloser, logger *slog.Logger) {
+	if err := body.Close(); err != nil {
+		logger.Warn(fmt.Sprintf("Error closing decoded body: %s", err))
+	}
+	if err := r.Body.Close(); err != nil {
+		logger.Warn(fmt.Sprintf("Error closing body: %s", err))
+	}
+}
+
+func WriteAddResult(w http.ResponseWriter, batch *IngestBatch, result any, logger *slog.Logger) {
+	if batch.Failed() {
+		// Queue failures are temporary, ask the client to back off a bit
+		w.Header().Set("Retry-After", "5")
+		http.Error(w, "Service Unavailable", http.StatusServiceUnavailable)
+		return
+	}
+
+	b, err := json.Marshal(result)
+	if err != nil {
+		logger.Error(fmt.Sprintf("Error marshaling response: %s", err))
+		http.Error(w, "Internal Server Error", http.StatusInternalServerError)
+		return
+	}
+
+	w.Header().Set("Content-Type", "application/json")
+	if _, err := w.Write(b); err != nil {
+		logger.Error(fmt.Sprintf("Error writing HTTP body: %s", err))
+	}
+}
+
 func Unauthorized(w http.ResponseWriter) {
 	w.Header().Set("WWW-Authenticate", `Basic realm="restricted", charset="UTF-8"`)
 	http.Error(w, "Unauthorized", http.StatusUnauthorized)
 }
 
 type RequestItem struct {
+	Id          string `json:"id"`
 	DeviceId    string `json:"device_id"`
 	MessageType string `json:"message_type"`
 	DateTime    string `json:"date_time"`
@@ -118,6 +221,7 @@ type RequestItem struct {
 }
 
 type SqsMessageData struct {
+	Id                   string `json:"id,omitempty"`
 	MessageType          string `json:"message_type"`
 	PrintableMessageType string `json:"printable_message_type"`
 	DeviceId             string `json:"device_id"`
@@ -169,6 +273,19 @@ func CreateSqsClient(ctx context.Context) *sqs.Client {
 	})
 }
 
+func GetDedupeWindowSize() int {
+	strSize := os.Getenv("DEDUPE_WINDOW_SIZE")
+	if strSize == "" {
+		return 10000
+	}
+
+	size, err := strconv.Atoi(strSize)
+	if err != nil || size < 1 {
+		log.Fatalf("Invalid dedupe window size: %s", strSize)
+	}
+	return size
+}
+
 func GetLogLevel() slog.Level {
 	strLogLevel := os.Getenv("LOG_LEVEL")
 
@@ -222,6 +339,9 @@ func main() {
 	sqsCtx := context.Background()
 	sqsClient := CreateSqsClient(sqsCtx)
 
+	dedupe := NewDedupeWindow(GetDedupeWindowSize(), 24*time.Hour)
+	ingester := NewIngester(sqsCtx, sqsClient, sqsQueueURL, timeZone, dedupe, logger)
+
 	mux := http.NewServeMux()
 
 	mux.HandleFunc("/", func(w http.ResponseWriter, r *http.Request) {
@@ -250,85 +370,91 @@ func main() {
 	})
 
 	addSms := http.HandlerFunc(func(w http.ResponseWriter, r *http.Request) {
+		w.Header().Set("Accept-Encoding", "gzip")
 		if r.URL.Path != "/add-sms" {
 			http.NotFound(w, r)
 			return
 		}
-		if r.Method != http.MethodPost {
-			http.Error(w, "method not allowed", http.StatusMethodNotAllowed)
-			return
-		}
 
-		if ct := r.Header.Get("Content-Type"); !strings.HasPrefix(ct, "application/json") {
-			http.Error(w, "Content-Type not supported", http.StatusUnsupportedMediaType)
+		body, ok := OpenRequestBody(w, r, "application/json", logger)
+		if !ok {
 			return
 		}
-		defer func() {
-			err := r.Body.Close()
-			if err != nil {
-				logger.Warn(fmt.Sprintf("Error closing body: %s", err))
-			}
-		}()
+		defer CloseRequestBody(r, body, logger)
 
 		var items []RequestItem
-		dec := json.NewDecoder(r.Body)
+		dec := json.NewDecoder(body)
 		if err := dec.Decode(&items); err != nil {
-			http.Error(w, "Bad json: "+err.Error(), http.StatusBadRequest)
+			http.Error(w, "Bad json: "+err.Error(), JsonErrorStatus(err))
 			return
 		}
 		if dec.More() {
-			http.Error(w, "Extra data after JSON", http.StatusBadRequest)
+			http.Error(w, "Extra data after JSON", http.StatusUnprocessableEntity)
 			return
 		}
 
-		var sqsMsg SqsMessage
-		sqsMsg.Type = "new_messages"
+		batch := ingester.NewBatch()
 		for _, item := range items {
-			logger.Info(
-				"incoming_message",
-				"type", item.MessageType,
-				"device_id", item.DeviceId,
-				"tel", item.Tel,
-				"date_time", item.DateTime,
-				"sms_date_time", item.SmsDateTime,
-				"text_length", len(item.Text),
-			)
-			if item.Tel == "org.telegram.messenger" {
-				continue
-			}
-			sqsMsg.Data = append(sqsMsg.Data, CreateSqsMessageData(item, timeZone, logger))
+			batch.Add(item)
 		}
+		batch.Flush()
+
+		WriteAddResult(w, batch, batch.Result(), logger)
+	})
+	mux.Handle("/add-sms", BasicAuth(httpUser, httpPassword, logger, addSms))
 
-		smsCount := len(sqsMsg.Data)
-		if smsCount > 0 {
-			b, err := json.Marshal(sqsMsg)
-			if err != nil {
-				logger.Error(fmt.Sprintf("Error marshaling sqs message: %s", err))
-				http.Error(w, "Internal Server Error", http.StatusInternalServerError)
-				return
+	// Newline-delimited JSON: items are decoded and queued one by one,
+	// so the request size doesn't affect memory use.
+	addSmsStream := http.HandlerFunc(func(w http.ResponseWriter, r *http.Request) {
+		w.Header().Set("Accept-Encoding", "gzip")
+		if r.URL.Path != "/add-sms-stream" {
+			http.NotFound(w, r)
+			return
+		}
+
+		body, ok := OpenRequestBody(w, r, "application/x-ndjson", logger)
+		if !ok {
+			return
+		}
+		defer CloseRequestBody(r, body, logger)
+
+		batch := ingester.NewStreamBatch()
+		reader := bufio.NewReader(body)
+		decoded := 0
+		broken := 0
+		for {
+			line, err := reader.ReadBytes('\n')
+			if err != nil && err != io.EOF {
+				// Items before the error are queued, the client sees that not all lines were read and retries
+				logger.Warn(fmt.Sprintf("Stream is broken after %d items: %s", decoded, err))
+				break
+			}
+
+			if len(bytes.TrimSpace(line)) > 0 {
+				var item RequestItem
+				if decodeErr := json.Unmarshal(line, &item); decodeErr != nil {
+					// A bad line is counted, the items after it are still queued
+					logger.Warn(fmt.Sprintf("Bad stream line %d: %s", decoded+broken+1, decodeErr))
+					broken++
+				} else {
+					decoded++
+					batch.Add(item)
+				}
 			}
-			s := string(b)
-
-			out, err := sqsClient.SendMessage(sqsCtx, &sqs.SendMessageInput{
-				QueueUrl:       aws.String(sqsQueueURL),
-				MessageBody:    aws.String(s),
-				MessageGroupId: aws.String("1"),
-			})
-			if err != nil {
-				logger.Error(fmt.Sprintf("Error sending sqs message: %s", err))
-				http.Error(w, "Internal Server Error", http.StatusInternalServerError)
-				return
+
+			if err == io.EOF {
+				break
 			}
-			logger.Info(fmt.Sprintf("SQS message sent: %s", *out.MessageId))
 		}
-
-		w.Header().Set("Content-Type", "application/json")
-		resp := fmt.Sprintf(`{"status":"OK","added":%d}`, smsCount)
-		if _, err := w.Write([]byte(resp)); err != nil {
-			logger.Error(fmt.Sprintf("Error writing HTTP body: %s", err))
+		if decoded == 0 && broken > 0 {
+			http.Error(w, "Bad json in all stream lines", http.StatusUnprocessableEntity)
+			return
 		}
+		batch.Flush()
+
+		WriteAddResult(w, batch, batch.StreamResult(decoded+broken, broken), logger)
 	})
-	mux.Handle("/add-sms", BasicAuth(httpUser, httpPassword, logger, addSms))
+	mux.Handle("/add-sms-stream", BasicAuth(httpUser, httpPassword, logger, addSmsStream))
 
 	handler := WithRequestID(AccessLog(logger, mux))
 
@@ -350,6 +476,7 @@ func main() {
 
 func CreateSqsMessageData(item RequestItem, timeZone *time.Location, logger *slog.Logger) SqsMessageData {
 	var data SqsMessageData
+	data.Id = item.Id
 	data.MessageType = item.MessageType
 	if data.MessageType == "" {
 		data.MessageType = "sms"